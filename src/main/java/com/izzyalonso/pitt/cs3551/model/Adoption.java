@@ -0,0 +1,27 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+import com.izzyalonso.pitt.cs3551.annotation.Nullable;
+
+/**
+ * Patches the hierarchy around a dead node. Without an heir, it's an orphan asking the dead node's parent where to
+ * go; the answer names the heir, the orphan itself if it's the first to ask. With one, it's an orphan asking the
+ * heir to take it in, answered with the same thing if it did, and without an heir if it didn't.
+ */
+@AutoValue
+public abstract class Adoption extends JsonConvertible {
+    public abstract NodeInfo dead();
+    public abstract NodeInfo orphan();
+    @Nullable public abstract NodeInfo heir();
+
+    public static Adoption create(@NonNull NodeInfo dead, @NonNull NodeInfo orphan, @Nullable NodeInfo heir) {
+        return new AutoValue_Adoption(dead, orphan, heir);
+    }
+
+    public static TypeAdapter<Adoption> typeAdapter(Gson gson) {
+        return new AutoValue_Adoption.GsonTypeAdapter(gson);
+    }
+}
@@ -0,0 +1,25 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * A node's share of a summary based balancing operation.
+ */
+@AutoValue
+public abstract class BalancingPlan extends JsonConvertible {
+    public abstract List<WeightTransfer> weightTransfers(); // <- The ones the node donates in, can be empty
+    public abstract long decidedAtMillis(); // <- When the plan was made, to measure how long jobs take to land
+
+    public static BalancingPlan create(@NonNull List<WeightTransfer> weightTransfers, long decidedAtMillis) {
+        return new AutoValue_BalancingPlan(weightTransfers, decidedAtMillis);
+    }
+
+    public static TypeAdapter<BalancingPlan> typeAdapter(Gson gson) {
+        return new AutoValue_BalancingPlan.GsonTypeAdapter(gson);
+    }
+}
@@ -0,0 +1,768 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+import com.izzyalonso.pitt.cs3551.model.commands.BuildHierarchy;
+import com.izzyalonso.pitt.cs3551.model.commands.SendNodeInfo;
+import com.izzyalonso.pitt.cs3551.model.commands.controller.KillNodes;
+import com.izzyalonso.pitt.cs3551.model.commands.controller.SpinUpNodes;
+import com.izzyalonso.pitt.cs3551.model.notices.NodeOnline;
+import com.izzyalonso.pitt.cs3551.model.notices.NodesSpawned;
+import com.izzyalonso.pitt.cs3551.model.notices.ResponseMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary alternative to the JSON representation of a {@link Message}. Each non null field of the message
+ * is written as a tag, the length of its payload, and the payload, so unknown tags can be skipped. Ints and longs
+ * are zigzag varints, doubles are 8 bytes, strings are length prefixed UTF-8.
+ *
+ * NodeInfos repeat a lot (every JobInfo carries its owner), so each field keeps a table of the ones it already
+ * wrote and refers back to them by index. Tables don't outlive their field, so skipping one doesn't throw off the
+ * references in the ones after it.
+ */
+public final class BinaryCodec {
+    // Message field tags. Never reuse a number.
+    private static final int TAG_SPIN_UP_NODES = 1;
+    private static final int TAG_KILL_NODES = 2;
+    private static final int TAG_NODE_ONLINE = 3;
+    private static final int TAG_NODES_SPAWNED = 4;
+    private static final int TAG_RESPONSE_MESSAGE = 5;
+    private static final int TAG_BUILD_HIERARCHY = 6;
+    private static final int TAG_SEND_NODE_INFO = 7;
+    private static final int TAG_DO_WORK = 8;
+    private static final int TAG_LOAD_INFO = 9;
+    private static final int TAG_HIERARCHY = 10;
+    private static final int TAG_COLLECT_JOBS = 11;
+    private static final int TAG_JOB_INFO_LIST = 12;
+    private static final int TAG_LOAD_BALANCING_RESULT = 13;
+    private static final int TAG_JOB_TRANSFER = 14;
+    private static final int TAG_JOBS = 15;
+    private static final int TAG_LOG = 16;
+    private static final int TAG_LOGS = 17;
+    private static final int TAG_JOB_SUMMARY_LIST = 18;
+    private static final int TAG_BALANCING_PLAN = 19;
+    private static final int TAG_ROUND_OVER = 20;
+    private static final int TAG_HIERARCHY_SHARES = 21;
+    private static final int TAG_HEARTBEAT = 22;
+    private static final int TAG_ADOPTION = 23;
+    private static final int TAG_STEAL = 24;
+
+    private static final Job.Type[] JOB_TYPES = Job.Type.values();
+
+
+    private BinaryCodec() {}
+
+    /**
+     * Encodes a message.
+     *
+     * @param message the message.
+     * @return the binary representation of the message.
+     */
+    @NonNull
+    public static byte[] encode(@NonNull Message message) {
+        Encoder encoder = new Encoder();
+        Sink sink = new Sink(64);
+        Sink field = new Sink(64);
+
+        if (message.spinUpNodes() != null) {
+            field.writeVarint(message.spinUpNodes().nodeCount());
+            encoder.writeField(sink, TAG_SPIN_UP_NODES, field);
+        }
+        if (message.killNodes() != null) {
+            encoder.writeField(sink, TAG_KILL_NODES, field);
+        }
+        if (message.nodeOnline() != null) {
+            field.writeVarint(message.nodeOnline().id());
+            field.writeVarint(message.nodeOnline().port());
+            encoder.writeField(sink, TAG_NODE_ONLINE, field);
+        }
+        if (message.nodesSpawned() != null) {
+            encoder.writeNodes(field, message.nodesSpawned().nodes());
+            encoder.writeField(sink, TAG_NODES_SPAWNED, field);
+        }
+        if (message.responseMessage() != null) {
+            field.writeString(message.responseMessage().message());
+            encoder.writeField(sink, TAG_RESPONSE_MESSAGE, field);
+        }
+        if (message.buildHierarchy() != null) {
+            field.writeVarint(message.buildHierarchy().branchingFactor());
+            encoder.writeNodes(field, message.buildHierarchy().nodes());
+            encoder.writeField(sink, TAG_BUILD_HIERARCHY, field);
+        }
+        if (message.sendNodeInfo() != null) {
+            encoder.writeNode(field, message.sendNodeInfo().node());
+            encoder.writeField(sink, TAG_SEND_NODE_INFO, field);
+        }
+        if (message.doWork() != null) {
+            writeJob(field, message.doWork());
+            encoder.writeField(sink, TAG_DO_WORK, field);
+        }
+        if (message.loadInfo() != null) {
+            LoadInfo loadInfo = message.loadInfo();
+            encoder.writeNode(field, loadInfo.node());
+            field.writeDouble(loadInfo.load());
+            field.writeDouble(loadInfo.load1s());
+            field.writeDouble(loadInfo.load10s());
+            field.writeDouble(loadInfo.load60s());
+            field.writeDouble(loadInfo.backlog());
+            encoder.writeField(sink, TAG_LOAD_INFO, field);
+        }
+        if (message.hierarchy() != null) {
+            encoder.writeTree(field, message.hierarchy());
+            encoder.writeField(sink, TAG_HIERARCHY, field);
+        }
+        if (message.hierarchyShares() != null && message.hierarchyNodes() != null) {
+            encoder.writeNodes(field, message.hierarchyNodes());
+            field.writeVarint(message.hierarchyShares().size());
+            for (HierarchyShare share : message.hierarchyShares()) {
+                field.writeVarint(share.node());
+                field.writeVarint(share.parent() + 1);
+                field.writeVarint(share.levels().size());
+                for (List<Integer> level : share.levels()) {
+                    field.writeVarint(level.size());
+                    for (int child : level) {
+                        field.writeVarint(child);
+                    }
+                }
+            }
+            encoder.writeField(sink, TAG_HIERARCHY_SHARES, field);
+        }
+        if (message.collectJobs() != null) {
+            field.writeVarlong(message.collectJobs());
+            encoder.writeField(sink, TAG_COLLECT_JOBS, field);
+        }
+        if (message.jobInfoList() != null) {
+            encoder.writeNode(field, message.jobInfoList().sender());
+            List<JobInfo> jobInfos = message.jobInfoList().jobInfoList();
+            field.writeVarint(jobInfos.size());
+            for (JobInfo jobInfo : jobInfos) {
+                encoder.writeJobInfo(field, jobInfo);
+            }
+            field.writeVarlong(message.jobInfoList().round());
+            encoder.writeField(sink, TAG_JOB_INFO_LIST, field);
+        }
+        if (message.loadBalancingResult() != null) {
+            encoder.writeTransfers(field, message.loadBalancingResult().jobTransfers());
+            field.writeVarlong(message.loadBalancingResult().decidedAtMillis());
+            encoder.writeField(sink, TAG_LOAD_BALANCING_RESULT, field);
+        }
+        if (message.jobTransfer() != null) {
+            encoder.writeTransfers(field, message.jobTransfer());
+            encoder.writeField(sink, TAG_JOB_TRANSFER, field);
+        }
+        if (message.jobs() != null) {
+            field.writeVarint(message.jobs().size());
+            for (Job job : message.jobs()) {
+                writeJob(field, job);
+            }
+            encoder.writeField(sink, TAG_JOBS, field);
+        }
+        if (message.jobSummaryList() != null) {
+            encoder.writeNode(field, message.jobSummaryList().sender());
+            List<JobSummary> summaries = message.jobSummaryList().summaries();
+            field.writeVarint(summaries.size());
+            for (JobSummary summary : summaries) {
+                encoder.writeNode(field, summary.node());
+                field.writeVarlong(summary.totalWeight());
+                field.writeVarint(summary.histogram().size());
+                for (int count : summary.histogram()) {
+                    field.writeVarint(count);
+                }
+            }
+            field.writeVarlong(message.jobSummaryList().round());
+            encoder.writeField(sink, TAG_JOB_SUMMARY_LIST, field);
+        }
+        if (message.balancingPlan() != null) {
+            List<WeightTransfer> weightTransfers = message.balancingPlan().weightTransfers();
+            field.writeVarint(weightTransfers.size());
+            for (WeightTransfer transfer : weightTransfers) {
+                encoder.writeNode(field, transfer.donor());
+                encoder.writeNode(field, transfer.recipient());
+                field.writeVarlong(transfer.weight());
+            }
+            field.writeVarlong(message.balancingPlan().decidedAtMillis());
+            encoder.writeField(sink, TAG_BALANCING_PLAN, field);
+        }
+        if (message.roundOver() != null) {
+            field.writeVarlong(message.roundOver());
+            encoder.writeField(sink, TAG_ROUND_OVER, field);
+        }
+        if (message.heartbeat() != null) {
+            encoder.writeNode(field, message.heartbeat().sender());
+            encoder.writeOptionalNode(field, message.heartbeat().parent());
+            field.writeDouble(message.heartbeat().backlog());
+            Heartbeat heartbeat = message.heartbeat();
+            if (heartbeat.successors() != null || heartbeat.neighborhood() != null) {
+                encoder.writeNodes(field, heartbeat.successors() != null ? heartbeat.successors() : Collections.<NodeInfo>emptyList());
+            }
+            if (heartbeat.neighborhood() != null) {
+                field.writeVarint(heartbeat.neighborhood().size());
+                for (List<NodeInfo> layer : heartbeat.neighborhood()) {
+                    encoder.writeNodes(field, layer);
+                }
+            }
+            encoder.writeField(sink, TAG_HEARTBEAT, field);
+        }
+        if (message.adoption() != null) {
+            encoder.writeNode(field, message.adoption().dead());
+            encoder.writeNode(field, message.adoption().orphan());
+            encoder.writeOptionalNode(field, message.adoption().heir());
+            encoder.writeField(sink, TAG_ADOPTION, field);
+        }
+        if (message.steal() != null) {
+            encoder.writeNode(field, message.steal());
+            encoder.writeField(sink, TAG_STEAL, field);
+        }
+        if (message.log() != null) {
+            field.writeString(message.log());
+            encoder.writeField(sink, TAG_LOG, field);
+        }
+        if (message.logs() != null) {
+            field.writeVarint(message.logs().size());
+            for (String log : message.logs()) {
+                field.writeString(log);
+            }
+            encoder.writeField(sink, TAG_LOGS, field);
+        }
+
+        return sink.toByteArray();
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param bytes a buffer holding the message.
+     * @param offset where the message starts.
+     * @param length how many bytes the message takes.
+     * @return the message.
+     * @throws IOException if the bytes don't make up a valid message.
+     */
+    @NonNull
+    public static Message decode(@NonNull byte[] bytes, int offset, int length) throws IOException {
+        Decoder decoder = new Decoder();
+        Source source = new Source(bytes, offset, offset + length);
+        Message.Builder builder = Message.builder();
+
+        while (source.hasRemaining()) {
+            decoder.startField();
+            int tag = source.readUnsigned();
+            int fieldLength = source.readUnsigned();
+            int fieldEnd = source.position + fieldLength;
+            if (fieldLength < 0 || fieldEnd > source.limit) {
+                throw new IOException("Field " + tag + " runs past the end of the message");
+            }
+
+            switch (tag) {
+                case TAG_SPIN_UP_NODES:
+                    builder.spinUpNodes(SpinUpNodes.create(source.readVarint()));
+                    break;
+
+                case TAG_KILL_NODES:
+                    builder.killNodes(KillNodes.create());
+                    break;
+
+                case TAG_NODE_ONLINE:
+                    builder.nodeOnline(NodeOnline.create(source.readVarint(), source.readVarint()));
+                    break;
+
+                case TAG_NODES_SPAWNED:
+                    builder.nodesSpawned(NodesSpawned.create(decoder.readNodes(source)));
+                    break;
+
+                case TAG_RESPONSE_MESSAGE:
+                    builder.responseMessage(ResponseMessage.create(source.readString()));
+                    break;
+
+                case TAG_BUILD_HIERARCHY:
+                    int branchingFactor = source.readVarint();
+                    builder.buildHierarchy(BuildHierarchy.create(branchingFactor, decoder.readNodes(source)));
+                    break;
+
+                case TAG_SEND_NODE_INFO:
+                    builder.sendNodeInfo(SendNodeInfo.create(decoder.readNode(source)));
+                    break;
+
+                case TAG_DO_WORK:
+                    builder.doWork(readJob(source));
+                    break;
+
+                case TAG_LOAD_INFO:
+                    NodeInfo node = decoder.readNode(source);
+                    double load = source.readDouble();
+                    if (source.position == fieldEnd) {
+                        builder.loadInfo(LoadInfo.create(node, load)); // <- From a node predating averages
+                    } else {
+                        builder.loadInfo(LoadInfo.create(
+                                node,
+                                load,
+                                source.readDouble(),
+                                source.readDouble(),
+                                source.readDouble(),
+                                source.readDouble()));
+                    }
+                    break;
+
+                case TAG_HIERARCHY:
+                    builder.hierarchy(decoder.readTree(source));
+                    break;
+
+                case TAG_HIERARCHY_SHARES:
+                    builder.hierarchyNodes(decoder.readNodes(source));
+                    int shareCount = source.readVarint();
+                    List<HierarchyShare> shares = new ArrayList<>(shareCount);
+                    for (int i = 0; i < shareCount; i++) {
+                        int shareNode = source.readVarint();
+                        int shareParent = source.readVarint() - 1;
+                        int levelCount = source.readVarint();
+                        List<List<Integer>> levels = new ArrayList<>(levelCount);
+                        for (int j = 0; j < levelCount; j++) {
+                            int childCount = source.readVarint();
+                            List<Integer> children = new ArrayList<>(childCount);
+                            for (int k = 0; k < childCount; k++) {
+                                children.add(source.readVarint());
+                            }
+                            levels.add(children);
+                        }
+                        shares.add(HierarchyShare.create(shareNode, shareParent, levels));
+                    }
+                    builder.hierarchyShares(shares);
+                    break;
+
+                case TAG_COLLECT_JOBS:
+                    // Nodes predating round ids don't send one, nothing will match 0
+                    builder.collectJobs(source.position == fieldEnd ? 0 : source.readVarlong());
+                    break;
+
+                case TAG_JOB_INFO_LIST:
+                    NodeInfo sender = decoder.readNode(source);
+                    int jobInfoCount = source.readVarint();
+                    List<JobInfo> jobInfos = new ArrayList<>(jobInfoCount);
+                    for (int i = 0; i < jobInfoCount; i++) {
+                        jobInfos.add(decoder.readJobInfo(source));
+                    }
+                    long jobInfoRound = source.position == fieldEnd ? 0 : source.readVarlong();
+                    builder.jobInfoList(JobInfoList.create(sender, jobInfos, jobInfoRound));
+                    break;
+
+                case TAG_LOAD_BALANCING_RESULT:
+                    List<JobTransfer> jobTransfers = decoder.readTransfers(source);
+                    // Nodes predating the timestamp don't send it
+                    long decidedAtMillis = source.position == fieldEnd ? 0 : source.readVarlong();
+                    builder.loadBalancingResult(LoadBalancingResult.create(jobTransfers, decidedAtMillis));
+                    break;
+
+                case TAG_JOB_TRANSFER:
+                    builder.jobTransfer(decoder.readTransfers(source));
+                    break;
+
+                case TAG_JOBS:
+                    int jobCount = source.readVarint();
+                    List<Job> jobs = new ArrayList<>(jobCount);
+                    for (int i = 0; i < jobCount; i++) {
+                        jobs.add(readJob(source));
+                    }
+                    builder.jobs(jobs);
+                    break;
+
+                case TAG_JOB_SUMMARY_LIST:
+                    NodeInfo summarySender = decoder.readNode(source);
+                    int summaryCount = source.readVarint();
+                    List<JobSummary> summaries = new ArrayList<>(summaryCount);
+                    for (int i = 0; i < summaryCount; i++) {
+                        NodeInfo summaryNode = decoder.readNode(source);
+                        long totalWeight = source.readVarlong();
+                        int bucketCount = source.readVarint();
+                        List<Integer> histogram = new ArrayList<>(bucketCount);
+                        for (int j = 0; j < bucketCount; j++) {
+                            histogram.add(source.readVarint());
+                        }
+                        summaries.add(JobSummary.create(summaryNode, totalWeight, histogram));
+                    }
+                    long summaryRound = source.position == fieldEnd ? 0 : source.readVarlong();
+                    builder.jobSummaryList(JobSummaryList.create(summarySender, summaries, summaryRound));
+                    break;
+
+                case TAG_BALANCING_PLAN:
+                    int weightTransferCount = source.readVarint();
+                    List<WeightTransfer> weightTransfers = new ArrayList<>(weightTransferCount);
+                    for (int i = 0; i < weightTransferCount; i++) {
+                        NodeInfo donor = decoder.readNode(source);
+                        NodeInfo recipient = decoder.readNode(source);
+                        weightTransfers.add(WeightTransfer.create(donor, recipient, source.readVarlong()));
+                    }
+                    builder.balancingPlan(BalancingPlan.create(weightTransfers, source.readVarlong()));
+                    break;
+
+                case TAG_ROUND_OVER:
+                    builder.roundOver(source.readVarlong());
+                    break;
+
+                case TAG_HEARTBEAT:
+                    NodeInfo heartbeatSender = decoder.readNode(source);
+                    NodeInfo heartbeatParent = decoder.readOptionalNode(source);
+                    double heartbeatBacklog = source.readDouble();
+                    List<NodeInfo> successors = null;
+                    List<List<NodeInfo>> neighborhood = null;
+                    if (source.position != fieldEnd) {
+                        successors = decoder.readNodes(source);
+                        if (successors.isEmpty()) {
+                            successors = null; // <- Just there for the neighborhood to follow
+                        }
+                    }
+                    if (source.position != fieldEnd) {
+                        int layerCount = source.readVarint();
+                        neighborhood = new ArrayList<>(layerCount);
+                        for (int i = 0; i < layerCount; i++) {
+                            neighborhood.add(decoder.readNodes(source));
+                        }
+                    }
+                    builder.heartbeat(Heartbeat.create(heartbeatSender, heartbeatParent, heartbeatBacklog, successors, neighborhood));
+                    break;
+
+                case TAG_ADOPTION:
+                    NodeInfo dead = decoder.readNode(source);
+                    NodeInfo orphan = decoder.readNode(source);
+                    builder.adoption(Adoption.create(dead, orphan, decoder.readOptionalNode(source)));
+                    break;
+
+                case TAG_STEAL:
+                    builder.steal(decoder.readNode(source));
+                    break;
+
+                case TAG_LOG:
+                    builder.log(source.readString());
+                    break;
+
+                case TAG_LOGS:
+                    int logCount = source.readVarint();
+                    List<String> logs = new ArrayList<>(logCount);
+                    for (int i = 0; i < logCount; i++) {
+                        logs.add(source.readString());
+                    }
+                    builder.logs(logs);
+                    break;
+
+                default:
+                    // Unknown field, most likely from a newer node. Skip it.
+                    break;
+            }
+            source.position = fieldEnd;
+        }
+
+        return builder.build();
+    }
+
+    private static void writeJob(Sink sink, Job job) {
+        sink.writeVarint(job.id());
+        sink.writeVarint(job.type().ordinal());
+        sink.writeVarint(job.input());
+    }
+
+    private static Job readJob(Source source) throws IOException {
+        int id = source.readVarint();
+        int type = source.readVarint();
+        if (type < 0 || type >= JOB_TYPES.length) {
+            throw new IOException("Unknown job type: " + type);
+        }
+        return new AutoValue_Job(id, JOB_TYPES[type], source.readVarint());
+    }
+
+
+    /**
+     * Encoding state of a single message.
+     */
+    private static final class Encoder {
+        private final Map<NodeInfo, Integer> nodeTable = new HashMap<>();
+
+        /**
+         * Appends a tagged field to {@code sink}, see {@link Sink#writeField}. Nodes in the next field start over.
+         */
+        void writeField(Sink sink, int tag, Sink field) {
+            sink.writeField(tag, field);
+            nodeTable.clear();
+        }
+
+        // 0 followed by the node the first time it's seen, its index in the table + 1 afterwards
+        void writeNode(Sink sink, NodeInfo node) {
+            Integer index = nodeTable.get(node);
+            if (index != null) {
+                sink.writeVarint(index + 1);
+                return;
+            }
+            nodeTable.put(node, nodeTable.size());
+            sink.writeVarint(0);
+            sink.writeVarint(node.id());
+            sink.writeString(node.address());
+            sink.writeVarint(node.port());
+        }
+
+        void writeNodes(Sink sink, List<NodeInfo> nodes) {
+            sink.writeVarint(nodes.size());
+            for (NodeInfo node : nodes) {
+                writeNode(sink, node);
+            }
+        }
+
+        void writeJobInfo(Sink sink, JobInfo jobInfo) {
+            sink.writeVarint(jobInfo.jobId());
+            sink.writeVarlong(jobInfo.weight());
+            writeNode(sink, jobInfo.owner());
+        }
+
+        void writeTransfers(Sink sink, List<JobTransfer> transfers) {
+            sink.writeVarint(transfers.size());
+            for (JobTransfer transfer : transfers) {
+                writeJobInfo(sink, transfer.job());
+                writeNode(sink, transfer.donor());
+                writeNode(sink, transfer.recipient());
+            }
+        }
+
+        void writeOptionalNode(Sink sink, NodeInfo node) {
+            sink.writeBoolean(node != null);
+            if (node != null) {
+                writeNode(sink, node);
+            }
+        }
+
+        void writeTree(Sink sink, TreeNode tree) {
+            writeNode(sink, tree.node());
+            writeOptionalNode(sink, tree.parent());
+            sink.writeVarint(tree.children().size());
+            for (TreeNode child : tree.children()) {
+                writeTree(sink, child);
+            }
+        }
+    }
+
+    /**
+     * Decoding state of a single message, mirrors {@link Encoder}.
+     */
+    private static final class Decoder {
+        private final List<NodeInfo> nodeTable = new ArrayList<>();
+
+        void startField() {
+            nodeTable.clear();
+        }
+
+        NodeInfo readNode(Source source) throws IOException {
+            int reference = source.readVarint();
+            if (reference != 0) {
+                if (reference < 0 || reference > nodeTable.size()) {
+                    throw new IOException("Invalid node reference: " + reference);
+                }
+                return nodeTable.get(reference - 1);
+            }
+            NodeInfo node = new AutoValue_NodeInfo(source.readVarint(), source.readString(), source.readVarint());
+            nodeTable.add(node);
+            return node;
+        }
+
+        NodeInfo readOptionalNode(Source source) throws IOException {
+            return source.readBoolean() ? readNode(source) : null;
+        }
+
+        List<NodeInfo> readNodes(Source source) throws IOException {
+            int count = source.readVarint();
+            List<NodeInfo> nodes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                nodes.add(readNode(source));
+            }
+            return nodes;
+        }
+
+        JobInfo readJobInfo(Source source) throws IOException {
+            int jobId = source.readVarint();
+            long weight = source.readVarlong();
+            return new AutoValue_JobInfo(jobId, weight, readNode(source));
+        }
+
+        List<JobTransfer> readTransfers(Source source) throws IOException {
+            int count = source.readVarint();
+            List<JobTransfer> transfers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                JobInfo job = readJobInfo(source);
+                NodeInfo donor = readNode(source);
+                transfers.add(JobTransfer.create(job, donor, readNode(source)));
+            }
+            return transfers;
+        }
+
+        TreeNode readTree(Source source) throws IOException {
+            NodeInfo node = readNode(source);
+            NodeInfo parent = readOptionalNode(source);
+            int childCount = source.readVarint();
+            // Mutable on purpose, the hierarchy builder relies on it
+            List<TreeNode> children = new ArrayList<>(childCount);
+            for (int i = 0; i < childCount; i++) {
+                children.add(readTree(source));
+            }
+            return new AutoValue_TreeNode(node, parent, children);
+        }
+    }
+
+    /**
+     * A growable byte buffer.
+     */
+    private static final class Sink {
+        private byte[] bytes;
+        private int size;
+
+        Sink(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, size + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeBytes(byte[] source, int length) {
+            ensureCapacity(length);
+            System.arraycopy(source, 0, bytes, size, length);
+            size += length;
+        }
+
+        void writeVarint(int value) {
+            writeUnsigned((value << 1) ^ (value >> 31));
+        }
+
+        void writeVarlong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                writeByte((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            writeByte((int) zigzag);
+        }
+
+        private void writeUnsigned(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (bits >>> shift));
+            }
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeUnsigned(utf8.length);
+            writeBytes(utf8, utf8.length);
+        }
+
+        /**
+         * Appends a tagged field whose payload was written to {@code field}, then clears {@code field} for reuse.
+         */
+        void writeField(int tag, Sink field) {
+            writeUnsigned(tag);
+            writeUnsigned(field.size);
+            writeBytes(field.bytes, field.size);
+            field.size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads from a byte array.
+     */
+    private static final class Source {
+        private final byte[] bytes;
+        private final int limit;
+        private int position;
+
+        Source(byte[] bytes, int position, int limit) {
+            this.bytes = bytes;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        boolean hasRemaining() {
+            return position < limit;
+        }
+
+        int readByte() throws IOException {
+            if (position >= limit) {
+                throw new IOException("Unexpected end of message");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        int readVarint() throws IOException {
+            int zigzag = readUnsigned();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        long readVarlong() throws IOException {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readUnsigned() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        String readString() throws IOException {
+            int length = readUnsigned();
+            if (length < 0 || position + length > limit) {
+                throw new IOException("String runs past the end of the message");
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+import com.izzyalonso.pitt.cs3551.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Sent between parents and the nodes they own to tell they're still around. The sender's parent rides along, so
+ * children know who to turn to if their parent dies. The root has nobody to point to, so it sends who'd take over
+ * from it instead, in order.
+ *
+ * With work stealing on, parents also let each child know who's around to steal from, nearest first: the child's
+ * siblings, then the parent's, and so on up.
+ *
+ * Every heartbeat also carries the sender's backlog, which is all diffusion balancing needs to know about its
+ * neighbors.
+ */
+@AutoValue
+public abstract class Heartbeat extends JsonConvertible {
+    public abstract NodeInfo sender();
+    @Nullable public abstract NodeInfo parent(); // <- null at the root
+    public abstract double backlog(); // <- Weight of the sender's queued jobs, per worker
+    @Nullable public abstract List<NodeInfo> successors(); // <- Only from the root
+    @Nullable public abstract List<List<NodeInfo>> neighborhood(); // <- Only from the parent
+
+    public static Heartbeat create(@NonNull NodeInfo sender, @Nullable NodeInfo parent, double backlog) {
+        return new AutoValue_Heartbeat(sender, parent, backlog, null, null);
+    }
+
+    public static Heartbeat createFromRoot(@NonNull NodeInfo sender, @NonNull List<NodeInfo> successors, double backlog) {
+        return new AutoValue_Heartbeat(sender, null, backlog, successors, null);
+    }
+
+    public static Heartbeat create(
+            @NonNull NodeInfo sender,
+            @Nullable NodeInfo parent,
+            double backlog,
+            @Nullable List<NodeInfo> successors,
+            @Nullable List<List<NodeInfo>> neighborhood) {
+
+        return new AutoValue_Heartbeat(sender, parent, backlog, successors, neighborhood);
+    }
+
+    public Heartbeat withNeighborhood(@NonNull List<List<NodeInfo>> neighborhood) {
+        return create(sender(), parent(), backlog(), successors(), neighborhood);
+    }
+
+    public static TypeAdapter<Heartbeat> typeAdapter(Gson gson) {
+        return new AutoValue_Heartbeat.GsonTypeAdapter(gson);
+    }
+}
@@ -0,0 +1,28 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * The part of the hierarchy a node needs to do its job: who its parent is and which nodes it owns at every level
+ * it's a parent in. Nodes are indices into a list of nodes sent along, so every node is spelled out once per
+ * message. The compact alternative to sending whole subtrees around, see LB_COMPACT_HIERARCHY.
+ */
+@AutoValue
+public abstract class HierarchyShare extends JsonConvertible {
+    public abstract int node();
+    public abstract int parent(); // <- -1 at the root
+    public abstract List<List<Integer>> levels(); // <- Children at every level, top down, the node itself left out
+
+    public static HierarchyShare create(int node, int parent, @NonNull List<List<Integer>> levels) {
+        return new AutoValue_HierarchyShare(node, parent, levels);
+    }
+
+    public static TypeAdapter<HierarchyShare> typeAdapter(Gson gson) {
+        return new AutoValue_HierarchyShare.GsonTypeAdapter(gson);
+    }
+}
@@ -13,7 +13,7 @@ public abstract class Job extends JsonConvertible {
     public abstract int input();
 
 
-    long weight() {
+    public long weight() {
         switch (type()) {
             case FIBONACCI:
                 return input()-1;
@@ -11,9 +11,10 @@ import java.util.List;
 public abstract class JobInfoList extends JsonConvertible {
     public abstract NodeInfo sender();
     public abstract List<JobInfo> jobInfoList();
+    public abstract long round(); // <- The one the sender was asked to collect for
 
-    public static JobInfoList create(@NonNull NodeInfo sender, @NonNull List<JobInfo> jobInfoList) {
-        return new AutoValue_JobInfoList(sender, jobInfoList);
+    public static JobInfoList create(@NonNull NodeInfo sender, @NonNull List<JobInfo> jobInfoList, long round) {
+        return new AutoValue_JobInfoList(sender, jobInfoList, round);
     }
 
     public static TypeAdapter<JobInfoList> typeAdapter(Gson gson) {
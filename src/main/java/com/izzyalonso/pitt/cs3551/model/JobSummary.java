@@ -0,0 +1,63 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * What a node has queued, in a size that doesn't depend on how much it has queued.
+ */
+@AutoValue
+public abstract class JobSummary extends JsonConvertible {
+    public abstract NodeInfo node();
+    public abstract long totalWeight();
+    public abstract List<Integer> histogram(); // <- Job count per bucket, bucket i holding weights in [2^i, 2^(i+1))
+
+
+    /**
+     * The lightest a job this node has can be, 0 if it has none.
+     */
+    public long smallestWeight() {
+        for (int i = 0; i < histogram().size(); i++) {
+            if (histogram().get(i) != 0) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    public static JobSummary create(@NonNull NodeInfo node, long totalWeight, @NonNull List<Integer> histogram) {
+        return new AutoValue_JobSummary(node, totalWeight, histogram);
+    }
+
+    /**
+     * Summarizes a bunch of jobs.
+     *
+     * @param node the node the jobs are queued at.
+     * @param jobs the jobs.
+     * @return the summary.
+     */
+    public static JobSummary of(@NonNull NodeInfo node, @NonNull Collection<Job> jobs) {
+        long totalWeight = 0;
+        List<Integer> histogram = new ArrayList<>();
+        for (Job job : jobs) {
+            long weight = job.weight();
+            totalWeight += weight;
+            int bucket = weight <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(weight);
+            while (histogram.size() <= bucket) {
+                histogram.add(0);
+            }
+            histogram.set(bucket, histogram.get(bucket) + 1);
+        }
+        return create(node, totalWeight, histogram);
+    }
+
+    public static TypeAdapter<JobSummary> typeAdapter(Gson gson) {
+        return new AutoValue_JobSummary.GsonTypeAdapter(gson);
+    }
+}
@@ -0,0 +1,23 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+
+import java.util.List;
+
+@AutoValue
+public abstract class JobSummaryList extends JsonConvertible {
+    public abstract NodeInfo sender();
+    public abstract List<JobSummary> summaries(); // <- One per node in the sender's subtree
+    public abstract long round(); // <- The one the sender was asked to collect for
+
+    public static JobSummaryList create(@NonNull NodeInfo sender, @NonNull List<JobSummary> summaries, long round) {
+        return new AutoValue_JobSummaryList(sender, summaries, round);
+    }
+
+    public static TypeAdapter<JobSummaryList> typeAdapter(Gson gson) {
+        return new AutoValue_JobSummaryList.GsonTypeAdapter(gson);
+    }
+}
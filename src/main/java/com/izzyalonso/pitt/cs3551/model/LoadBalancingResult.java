@@ -10,10 +10,11 @@ import java.util.List;
 @AutoValue
 public abstract class LoadBalancingResult extends JsonConvertible {
     public abstract List<JobTransfer> jobTransfers();
+    public abstract long decidedAtMillis(); // <- When the operation's transfers were decided, 0 if unknown
 
 
-    public static LoadBalancingResult create(@NonNull List<JobTransfer> jobTransfers) {
-        return new AutoValue_LoadBalancingResult(jobTransfers);
+    public static LoadBalancingResult create(@NonNull List<JobTransfer> jobTransfers, long decidedAtMillis) {
+        return new AutoValue_LoadBalancingResult(jobTransfers, decidedAtMillis);
     }
 
     public static TypeAdapter<LoadBalancingResult> typeAdapter(Gson gson) {
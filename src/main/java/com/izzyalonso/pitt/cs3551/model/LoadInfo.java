@@ -5,14 +5,63 @@ import com.google.gson.Gson;
 import com.google.gson.TypeAdapter;
 import com.izzyalonso.pitt.cs3551.annotation.NonNull;
 
+import java.util.List;
+
 @AutoValue
 public abstract class LoadInfo extends JsonConvertible {
     public abstract NodeInfo node();
-    public abstract double load();
+    public abstract double load(); // <- Busy fraction over the last couple of seconds
+    public abstract double load1s(); // <- Moving averages of the busy fraction, decaying over ~1, 10 and 60 seconds
+    public abstract double load10s();
+    public abstract double load60s();
+    public abstract double backlog(); // <- Weight of the jobs waiting to be picked up, per worker
 
 
     public static LoadInfo create(@NonNull NodeInfo node, double load) {
-        return new AutoValue_LoadInfo(node, load);
+        return create(node, load, load, load, load, 0);
+    }
+
+    public static LoadInfo create(
+            @NonNull NodeInfo node, double load, double load1s, double load10s, double load60s, double backlog) {
+
+        return new AutoValue_LoadInfo(node, load, load1s, load10s, load60s, backlog);
+    }
+
+    /**
+     * Averages a bunch of loads field by field, eg. to summarize a subtree.
+     *
+     * @param node the node the average is attributed to.
+     * @param loads the loads to average, can't be empty.
+     * @return the average.
+     */
+    public static LoadInfo average(@NonNull NodeInfo node, @NonNull List<LoadInfo> loads) {
+        double load = 0, load1s = 0, load10s = 0, load60s = 0, backlog = 0;
+        for (LoadInfo info : loads) {
+            load += info.load();
+            load1s += info.load1s();
+            load10s += info.load10s();
+            load60s += info.load60s();
+            backlog += info.backlog();
+        }
+        int count = loads.size();
+        return create(node, load/count, load1s/count, load10s/count, load60s/count, backlog/count);
+    }
+
+    /**
+     * Tells whether this load is different enough from one reported earlier to be worth reporting again. The busy
+     * fraction has to move more than the threshold, the backlog more than that fraction of what it was, or go from
+     * nothing to something or back; that last one decides whether there's anything to balance at all.
+     *
+     * @param reported the load reported earlier.
+     * @param threshold how much the busy fraction can move, also the fraction the backlog can move.
+     * @return whether it should be reported.
+     */
+    public boolean differsFrom(@NonNull LoadInfo reported, double threshold) {
+        if ((backlog() > 0) != (reported.backlog() > 0)) {
+            return true;
+        }
+        return Math.abs(load() - reported.load()) > threshold
+                || Math.abs(backlog() - reported.backlog()) > threshold*reported.backlog();
     }
 
     public static TypeAdapter<LoadInfo> typeAdapter(Gson gson) {
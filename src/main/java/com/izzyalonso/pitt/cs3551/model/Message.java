@@ -3,6 +3,7 @@ package com.izzyalonso.pitt.cs3551.model;
 import com.google.auto.value.AutoValue;
 import com.google.gson.Gson;
 import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
 import com.izzyalonso.pitt.cs3551.annotation.NonNull;
 import com.izzyalonso.pitt.cs3551.annotation.Nullable;
 import com.izzyalonso.pitt.cs3551.model.commands.BuildHierarchy;
@@ -13,6 +14,8 @@ import com.izzyalonso.pitt.cs3551.model.notices.NodeOnline;
 import com.izzyalonso.pitt.cs3551.model.notices.NodesSpawned;
 import com.izzyalonso.pitt.cs3551.model.notices.ResponseMessage;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 
 @AutoValue
@@ -34,19 +37,34 @@ public abstract class Message extends JsonConvertible {
     @Nullable public abstract LoadInfo loadInfo();
 
     @Nullable public abstract TreeNode hierarchy();
+    // The shares of everybody in the recipient's subtree, the recipient's first, and the nodes they refer to
+    @Nullable public abstract List<HierarchyShare> hierarchyShares();
+    @Nullable public abstract List<NodeInfo> hierarchyNodes();
 
-    // Instructs the parent of a subtree to collect all its subtrees' jobs
-    public abstract boolean collectJobs(); // Default to false when using the builder
+    // Instructs the parent of a subtree to collect all its subtrees' jobs, for the round with this id
+    @Nullable public abstract Long collectJobs();
     @Nullable public abstract JobInfoList jobInfoList();
     @Nullable public abstract LoadBalancingResult loadBalancingResult();
     @Nullable public abstract List<JobTransfer> jobTransfer();
     @Nullable public abstract List<Job> jobs();
+    // The summary based take on the above, see LB_SUMMARY_COLLECTION
+    @Nullable public abstract JobSummaryList jobSummaryList();
+    @Nullable public abstract BalancingPlan balancingPlan();
+    // Ends the round with this id for a node that was left out of it, and for whoever that node asked in turn
+    @Nullable public abstract Long roundOver();
+
+    // Failure detection and repairing the hierarchy around dead nodes
+    @Nullable public abstract Heartbeat heartbeat();
+    @Nullable public abstract Adoption adoption();
+    // A node out of work asking for some of the recipient's queue, answered with jobs
+    @Nullable public abstract NodeInfo steal();
 
     @Nullable public abstract String log();
+    @Nullable public abstract List<String> logs(); // <- A batch of log lines
 
 
-    private static Builder builder() {
-        return new AutoValue_Message.Builder().collectJobs(false);
+    static Builder builder() {
+        return new AutoValue_Message.Builder();
     }
 
     /*
@@ -85,18 +103,29 @@ public abstract class Message extends JsonConvertible {
         return builder().hierarchy(hierarchy).build();
     }
 
+    public static Message createHierarchyShares(
+            @NonNull List<HierarchyShare> hierarchyShares, @NonNull List<NodeInfo> hierarchyNodes) {
+
+        return builder().hierarchyShares(hierarchyShares).hierarchyNodes(hierarchyNodes).build();
+    }
+
     public static Message create(@NonNull LoadInfo loadInfo) {
         return builder().loadInfo(loadInfo).build();
     }
 
-    public static Message createCollectJobs() {
-        return builder().collectJobs(true).build();
+    public static Message createCollectJobs(long round) {
+        return builder().collectJobs(round).build();
     }
 
     public static Message create(@NonNull JobInfoList jobInfoList) {
         return builder().jobInfoList(jobInfoList).build();
     }
 
+    // Same as above, with the sender's load piggybacked, see LB_LOAD_PIGGYBACK
+    public static Message create(@NonNull JobInfoList jobInfoList, @Nullable LoadInfo loadInfo) {
+        return builder().jobInfoList(jobInfoList).loadInfo(loadInfo).build();
+    }
+
     public static Message create(@NonNull LoadBalancingResult loadBalancingResult) {
         return builder().loadBalancingResult(loadBalancingResult).build();
     }
@@ -109,10 +138,42 @@ public abstract class Message extends JsonConvertible {
         return builder().jobs(jobs).build();
     }
 
+    public static Message create(@NonNull JobSummaryList jobSummaryList) {
+        return builder().jobSummaryList(jobSummaryList).build();
+    }
+
+    public static Message create(@NonNull JobSummaryList jobSummaryList, @Nullable LoadInfo loadInfo) {
+        return builder().jobSummaryList(jobSummaryList).loadInfo(loadInfo).build();
+    }
+
+    public static Message create(@NonNull BalancingPlan balancingPlan) {
+        return builder().balancingPlan(balancingPlan).build();
+    }
+
+    public static Message createRoundOver(long round) {
+        return builder().roundOver(round).build();
+    }
+
+    public static Message create(@NonNull Heartbeat heartbeat) {
+        return builder().heartbeat(heartbeat).build();
+    }
+
+    public static Message create(@NonNull Adoption adoption) {
+        return builder().adoption(adoption).build();
+    }
+
+    public static Message createSteal(@NonNull NodeInfo thief) {
+        return builder().steal(thief).build();
+    }
+
     public static Message create(@NonNull String log) {
         return builder().log(log).build();
     }
 
+    public static Message createLogBatch(@NonNull List<String> logs) {
+        return builder().logs(logs).build();
+    }
+
     /**
      * Creates a message from a JSON string.
      *
@@ -123,6 +184,25 @@ public abstract class Message extends JsonConvertible {
         return ModelTypeAdapterFactory.fromJson(json, Message.class);
     }
 
+    /**
+     * Reads the next message off of a JSON stream, see {@link ModelTypeAdapterFactory#newJsonReader}.
+     *
+     * @param reader the json reader.
+     * @return the Message.
+     */
+    public static Message fromJson(JsonReader reader) throws IOException {
+        return ModelTypeAdapterFactory.fromJson(reader, Message.class);
+    }
+
+    /**
+     * Writes this message as JSON straight to a writer, without building the whole string first.
+     *
+     * @param writer the writer, which is neither flushed nor closed.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        ModelTypeAdapterFactory.toJson(this, Message.class, writer);
+    }
+
 
     public static TypeAdapter<Message> typeAdapter(Gson gson) {
         return new AutoValue_Message.GsonTypeAdapter(gson);
@@ -145,14 +225,23 @@ public abstract class Message extends JsonConvertible {
         abstract Builder loadInfo(@Nullable LoadInfo loadInfo);
 
         abstract Builder hierarchy(@Nullable TreeNode hierarchy);
+        abstract Builder hierarchyShares(@Nullable List<HierarchyShare> hierarchyShares);
+        abstract Builder hierarchyNodes(@Nullable List<NodeInfo> hierarchyNodes);
 
-        abstract Builder collectJobs(boolean collectJobs);
+        abstract Builder collectJobs(@Nullable Long collectJobs);
         abstract Builder jobInfoList(@Nullable JobInfoList jobInfoList);
         abstract Builder loadBalancingResult(@Nullable LoadBalancingResult loadBalancingResult);
         abstract Builder jobTransfer(@Nullable List<JobTransfer> jobTransfer);
         abstract Builder jobs(@Nullable List<Job> jobs);
+        abstract Builder jobSummaryList(@Nullable JobSummaryList jobSummaryList);
+        abstract Builder balancingPlan(@Nullable BalancingPlan balancingPlan);
+        abstract Builder roundOver(@Nullable Long roundOver);
+        abstract Builder heartbeat(@Nullable Heartbeat heartbeat);
+        abstract Builder adoption(@Nullable Adoption adoption);
+        abstract Builder steal(@Nullable NodeInfo steal);
 
         abstract Builder log(@Nullable String log);
+        abstract Builder logs(@Nullable List<String> logs);
 
         abstract Message build();
     }
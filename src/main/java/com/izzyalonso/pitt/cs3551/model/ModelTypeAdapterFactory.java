@@ -3,8 +3,14 @@ package com.izzyalonso.pitt.cs3551.model;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapterFactory;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.ryanharter.auto.value.gson.GsonTypeAdapterFactory;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
 @GsonTypeAdapterFactory
 public abstract class ModelTypeAdapterFactory implements TypeAdapterFactory {
     private static final Gson GSON = new GsonBuilder()
@@ -23,4 +29,27 @@ public abstract class ModelTypeAdapterFactory implements TypeAdapterFactory {
     static <T> T fromJson(String json, Class<T> cls) {
         return GSON.fromJson(json, cls);
     }
+
+    /**
+     * Writes the JSON representation of an object straight to a writer, no intermediate String. Neither flushes
+     * nor closes the writer.
+     */
+    static <T> void toJson(T obj, Class<T> cls, Writer writer) throws IOException {
+        JsonWriter jsonWriter = GSON.newJsonWriter(writer);
+        GSON.getAdapter(cls).write(jsonWriter, obj);
+    }
+
+    /**
+     * Creates a JSON reader that accepts any number of consecutive top level values, for streams carrying one
+     * object after the other.
+     */
+    public static JsonReader newJsonReader(Reader reader) {
+        JsonReader jsonReader = GSON.newJsonReader(reader);
+        jsonReader.setLenient(true);
+        return jsonReader;
+    }
+
+    static <T> T fromJson(JsonReader reader, Class<T> cls) throws IOException {
+        return GSON.getAdapter(cls).read(reader);
+    }
 }
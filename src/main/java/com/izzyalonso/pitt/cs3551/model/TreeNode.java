@@ -7,6 +7,7 @@ import com.izzyalonso.pitt.cs3551.annotation.NonNull;
 import com.izzyalonso.pitt.cs3551.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -21,6 +22,30 @@ public abstract class TreeNode extends JsonConvertible {
         return children().isEmpty();
     }
 
+    /**
+     * The widest fan-out at every level, top down. The shape of the tree at a glance.
+     *
+     * @return the fan-outs, empty for a leaf.
+     */
+    @NonNull
+    public List<Integer> fanOuts() {
+        List<Integer> fanOuts = new ArrayList<>();
+        List<TreeNode> level = Collections.singletonList(this);
+        while (true) {
+            int widest = 0;
+            List<TreeNode> nextLevel = new ArrayList<>();
+            for (TreeNode treeNode : level) {
+                widest = Math.max(widest, treeNode.children().size());
+                nextLevel.addAll(treeNode.children());
+            }
+            if (widest == 0) {
+                return fanOuts;
+            }
+            fanOuts.add(widest);
+            level = nextLevel;
+        }
+    }
+
     @NonNull
     public TreeNode assignParent(@NonNull NodeInfo parent) {
         return new AutoValue_TreeNode(node(), parent, children());
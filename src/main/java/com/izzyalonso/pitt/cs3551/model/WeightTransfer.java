@@ -0,0 +1,24 @@
+package com.izzyalonso.pitt.cs3551.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.izzyalonso.pitt.cs3551.annotation.NonNull;
+
+/**
+ * How much weight a donor should hand over to a recipient. The donor picks the actual jobs.
+ */
+@AutoValue
+public abstract class WeightTransfer extends JsonConvertible {
+    public abstract NodeInfo donor();
+    public abstract NodeInfo recipient();
+    public abstract long weight();
+
+    public static WeightTransfer create(@NonNull NodeInfo donor, @NonNull NodeInfo recipient, long weight) {
+        return new AutoValue_WeightTransfer(donor, recipient, weight);
+    }
+
+    public static TypeAdapter<WeightTransfer> typeAdapter(Gson gson) {
+        return new AutoValue_WeightTransfer.GsonTypeAdapter(gson);
+    }
+}
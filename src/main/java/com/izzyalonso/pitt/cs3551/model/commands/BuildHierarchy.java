@@ -10,6 +10,9 @@ import java.util.List;
 
 @AutoValue
 public abstract class BuildHierarchy extends JsonConvertible {
+    // Branching factor asking the builder to pick fan-outs per level by itself
+    public static final int ADAPTIVE = 0;
+
     public abstract int branchingFactor();
     public abstract List<NodeInfo> nodes();
 
@@ -11,6 +11,10 @@ import com.izzyalonso.pitt.cs3551.model.NodeInfo;
 public abstract class SendNodeInfo extends JsonConvertible {
     public abstract NodeInfo node();
 
+    public static SendNodeInfo create(NodeInfo node) {
+        return new AutoValue_SendNodeInfo(node);
+    }
+
     public static TypeAdapter<SendNodeInfo> typeAdapter(Gson gson) {
         return new AutoValue_SendNodeInfo.GsonTypeAdapter(gson);
     }
@@ -0,0 +1,152 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
+import com.izzyalonso.pitt.cs3551.util.Config
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
+
+
+/**
+ * Decides when a parent should balance its subtree, weighing what a round would gain against what rounds cost.
+ *
+ * The gain is how much sooner the busiest subtree would be done with its queue if everybody had the average
+ * backlog, in milliseconds at the rate jobs have been running. The cost is how long this node's rounds have been
+ * taking, smoothed, or [Config.roundCostMillis] until there's been one.
+ *
+ * It fires with hysteresis: the subtree counts as imbalanced once the gain goes over [gainRatio] times the cost,
+ * and stays that way until it drops under [releaseRatio] times the cost, so a spread hovering around the line
+ * doesn't flip it back and forth. While imbalanced it fires once the cooldown since the last round is up. The
+ * cooldown is a few round costs, a second at least, and doubles every time a round left the gain about where it
+ * was, up to half a minute; tiny or unmovable jobs don't get shuffled around every few seconds for nothing.
+ *
+ * Every decision made with something queued is counted in the trigger metrics, see [Decision].
+ *
+ * The [clock] is there so tests can fake the passing of time; it's System.currentTimeMillis() otherwise.
+ */
+@AnyThread
+class BalancingTrigger(
+    private val gainRatio: Double = Config.triggerGainRatio,
+    private val releaseRatio: Double = Config.triggerReleaseRatio,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    @GuardedBy(who = "this")
+    var roundCostMillis = Config.roundCostMillis.toDouble()
+        private set
+    @GuardedBy(who = "this")
+    var gainMillis = 0.0
+        private set
+    @GuardedBy(who = "this")
+    private var measuredRounds = 0
+    @GuardedBy(who = "this")
+    private var imbalanced = false
+    @GuardedBy(who = "this")
+    private var lastRoundMillis = clock()
+    @GuardedBy(who = "this")
+    private var cooldownMillis = minCooldownMillis
+    // The gain when we last fired, to tell whether that round did anything once the cooldown's up
+    @GuardedBy(who = "this")
+    private var firedAtGain: Double? = null
+
+    /**
+     * Whether to balance now, given the per worker [backlogs] of the subtrees and how long a unit of weight takes
+     * to run, if that's known yet. Counts the decision in the trigger metrics.
+     */
+    @Synchronized
+    fun evaluate(backlogs: List<Double>, nanosPerWeight: Double?): Decision {
+        val decision = decide(backlogs, nanosPerWeight ?: defaultNanosPerWeight)
+        decision.metric?.let { Metrics.increment(it) }
+        return decision
+    }
+
+    /**
+     * A round covering this subtree just ended, ours if it took [durationMillis], which then counts toward the
+     * cost; a parent's otherwise. Either way the cooldown starts over.
+     */
+    @Synchronized
+    fun roundOver(durationMillis: Long? = null) {
+        lastRoundMillis = clock()
+        if (durationMillis == null) {
+            return
+        }
+        Metrics.record("balance.roundTime", TimeUnit.MILLISECONDS.toNanos(durationMillis))
+        roundCostMillis = if (measuredRounds++ == 0) {
+            durationMillis.toDouble()
+        } else {
+            (1 - costSmoothing)*roundCostMillis + costSmoothing*durationMillis
+        }
+    }
+
+    private fun decide(backlogs: List<Double>, nanosPerWeight: Double): Decision {
+        val average = backlogs.average()
+        if (backlogs.isEmpty() || average == 0.0) {
+            gainMillis = 0.0
+            release()
+            return Decision.IDLE
+        }
+        gainMillis = (backlogs.max()!! - average)*nanosPerWeight/TimeUnit.MILLISECONDS.toNanos(1)
+
+        // In between the two ratios, whatever it was before
+        if (gainMillis > gainRatio*roundCostMillis) {
+            imbalanced = true
+        } else if (gainMillis < releaseRatio*roundCostMillis) {
+            release()
+        }
+        if (!imbalanced) {
+            return Decision.BELOW_COST
+        }
+        if (clock() - lastRoundMillis < cooldownMillis) {
+            return Decision.COOLDOWN
+        }
+
+        val before = firedAtGain
+        if (before != null) {
+            firedAtGain = null
+            if (gainMillis > ineffectiveRatio*before) {
+                // The last round barely made a dent, back off before trying again
+                cooldownMillis = min(2*cooldownMillis, maxCooldownMillis)
+                lastRoundMillis = clock()
+                return Decision.INEFFECTIVE
+            }
+            cooldownMillis = baseCooldownMillis() // <- It worked
+        }
+        cooldownMillis = max(cooldownMillis, baseCooldownMillis())
+        firedAtGain = gainMillis
+        return Decision.FIRE
+    }
+
+    /**
+     * Back to balanced, and to the shortest cooldown. Rounds before don't say anything about the next imbalance.
+     */
+    private fun release() {
+        imbalanced = false
+        firedAtGain = null
+        cooldownMillis = baseCooldownMillis()
+    }
+
+    private fun baseCooldownMillis() = max(minCooldownMillis, (cooldownRounds*roundCostMillis).toLong())
+
+    enum class Decision(val metric: String?) {
+        FIRE("trigger.fired"),
+        IDLE(null), // <- Nothing queued, nothing to decide
+        BELOW_COST("trigger.belowCost"),
+        COOLDOWN("trigger.cooldown"),
+        INEFFECTIVE("trigger.ineffective")
+    }
+
+    private companion object {
+        const val minCooldownMillis = 1_000L
+        const val maxCooldownMillis = 30_000L
+        // The cooldown after a round, in round costs
+        const val cooldownRounds = 4
+        // Weight of the latest round in the smoothed cost
+        const val costSmoothing = 0.3
+        // A round that leaves more than this fraction of the gain it fired at didn't work
+        const val ineffectiveRatio = 0.5
+        // How long a unit of weight takes to run until it's been measured. Square sums sleep a millisecond per unit
+        const val defaultNanosPerWeight = 1_000_000.0
+    }
+}
@@ -0,0 +1,388 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.model.*
+import com.izzyalonso.pitt.cs3551.model.commands.BuildHierarchy
+import com.izzyalonso.pitt.cs3551.net.WireConnection
+import com.izzyalonso.pitt.cs3551.net.WireFormat
+import com.izzyalonso.pitt.cs3551.net.send
+import com.izzyalonso.pitt.cs3551.util.Config
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.io.*
+import java.lang.management.ManagementFactory
+import java.net.Socket
+import java.util.*
+import kotlin.text.Charsets.UTF_8
+
+
+fun main() {
+    benchmark_jsonAllocationPerMessage()
+    benchmark_workerStartLatency()
+    benchmark_transferExtraction()
+    benchmark_balancingModes()
+    benchmark_collectionMessageSize()
+    benchmark_hierarchyLocality()
+    benchmark_hierarchySetup()
+    benchmark_diffusion()
+}
+
+/**
+ * Bytes allocated per round trip (write + read) of a job info list of 5k jobs, which is what collectJobInfos
+ * ships around. "Before" builds the whole JSON string and reads whole lines, the way it used to be done; "after"
+ * is what persistent connections do now, streaming straight to and from the socket.
+ */
+fun benchmark_jsonAllocationPerMessage() {
+    val owner = NodeInfo.create(1, "localhost", 40001)
+    val jobInfos = (0 until 5000).map { Job.create(Job.Type.SQUARE_SUM, 300 + it%100).getInfo(owner) }
+    val message = Message.create(JobInfoList.create(owner, jobInfos, 1))
+    val iterations = 50
+
+    val before = bytesPerIteration(iterations) {
+        val sink = ByteArrayOutputStream()
+        PrintWriter(OutputStreamWriter(sink, UTF_8), true).println(message.toJson())
+        val line = BufferedReader(InputStreamReader(ByteArrayInputStream(sink.toByteArray()), UTF_8)).readLine()
+        Message.fromJson(line)
+    }
+
+    val after = bytesPerIteration(iterations) {
+        val sink = ByteArrayOutputStream()
+        WireConnection(Socket(), ByteArrayInputStream(ByteArray(0)), sink, WireFormat.JSON).write(message)
+        WireConnection(Socket(), ByteArrayInputStream(sink.toByteArray()), NullOutputStream, WireFormat.JSON).read()
+    }
+
+    println("JSON message of ${jobInfos.size} jobs, ${message.toJson().length} chars")
+    println("Before: ${before/1024} KiB allocated per message")
+    println("After: ${after/1024} KiB allocated per message")
+}
+
+/**
+ * Time from a job being submitted to a worker starting it, when jobs trickle in to an otherwise idle node. "Before"
+ * is the old single worker loop, a list behind the node's monitor and a worker napping in wait(250); "after" is
+ * the [WorkerPool].
+ */
+fun benchmark_workerStartLatency() {
+    val jobs = 200
+    val job = Job.create(Job.Type.FIBONACCI, 10)
+    val random = Random(3551)
+    val gaps = List(jobs) { random.nextInt(10).toLong() }
+
+    // The old loop, give or take
+    val queue = LinkedList<Long>()
+    val workLock = Object()
+    val before = Metrics.Timer()
+    val worker = Thread {
+        while (before.count() < jobs) {
+            val submitted = synchronized(queue) { queue.pollFirst() }
+            if (submitted == null) {
+                synchronized(workLock) {
+                    workLock.wait(250)
+                }
+            } else {
+                before.record(System.nanoTime() - submitted)
+            }
+            // The old loop reported its load and checked for imbalance after every job or nap, before looking at
+            // the queue again. A notify landing in there is lost, and the next job waits out a whole nap
+            Thread.sleep(2)
+        }
+    }.apply {
+        isDaemon = true
+        start()
+    }
+    gaps.forEach {
+        synchronized(queue) { queue.add(System.nanoTime()) }
+        synchronized(workLock) { workLock.notify() }
+        Thread.sleep(it)
+    }
+    worker.join()
+
+    val pool = WorkerPool(4) {}
+    pool.start()
+    gaps.forEach {
+        pool.submit(job)
+        Thread.sleep(it)
+    }
+    Thread.sleep(100)
+    pool.stop()
+    val after = Metrics.timer("worker.startLatency")
+
+    println("Start latency of $jobs jobs submitted 0 to 10 ms apart")
+    println("Before: $before")
+    println("After: $after")
+}
+
+/**
+ * Time it takes a node to pull the jobs of a transfer request out of its queue, for queues of 1k to 1M jobs.
+ * "Before" scans the whole queue and then removeAll's the matches, the way it used to be done; "after" is the
+ * [WorkerPool], which finds them by id.
+ */
+fun benchmark_transferExtraction() {
+    val transferSize = 100
+    val rounds = 5
+    for (depth in listOf(1_000, 10_000, 100_000, 1_000_000)) {
+        val jobs = List(depth) { Job.create(Job.Type.SQUARE_SUM, 1) }
+        // Every round asks for a different set of jobs spread all over the queue
+        val requests = List(rounds) { round ->
+            (0 until transferSize).map { jobs[(it*depth/transferSize + round)%depth].id() }.toSet()
+        }
+
+        val queue = LinkedList(jobs)
+        val before = Metrics.Timer()
+        requests.forEach { jobIdSet ->
+            before.record(timeNanos {
+                val matches = mutableListOf<Job>()
+                queue.forEach {
+                    if (jobIdSet.contains(it.id())) {
+                        matches.add(it)
+                    }
+                }
+                queue.removeAll(matches)
+            })
+        }
+
+        val pool = WorkerPool(4) {} // <- Never started, jobs just sit there
+        pool.submitAll(jobs)
+        val after = Metrics.Timer()
+        requests.forEach { jobIdSet ->
+            after.record(timeNanos { pool.removeJobs(jobIdSet) })
+        }
+
+        println("Extracting $transferSize jobs out of $depth. Before: $before After: $after")
+    }
+}
+
+/**
+ * Compares the balancing modes on skewed job lists: how far the busiest node ends up from a perfect split
+ * (makespan over the average, 1.00 being perfect), how many jobs get moved and how long deciding takes.
+ */
+fun benchmark_balancingModes() {
+    val rounds = 5
+    val balancer = Node()
+    for ((nodeCount, jobCount) in listOf(4 to 1_000, 4 to 10_000, 32 to 10_000, 32 to 100_000)) {
+        val random = Random(42)
+        val nodes = List(nodeCount) { NodeInfo.create(it, "localhost", 40000 + it) }
+        // Skewed on purpose, the last nodes get the lion's share
+        val jobsPerNode = nodes.associateWith { mutableListOf<JobInfo>() }
+        repeat(jobCount) {
+            val node = nodes[(nodeCount*Math.sqrt(random.nextDouble())).toInt()]
+            jobsPerNode.getValue(node).add(Job.create(Job.Type.SQUARE_SUM, 100 + random.nextInt(900)).getInfo(node))
+        }
+        val weightOf = { jobs: List<JobInfo> -> jobs.fold(0L) { weight, job -> weight + job.weight() } }
+        val average = jobsPerNode.values.fold(0L) { total, jobs -> total + weightOf(jobs) }.toDouble()/nodeCount
+
+        for (mode in BalancingMode.values()) {
+            val timer = Metrics.Timer()
+            var transfers = listOf<JobTransfer>()
+            repeat(rounds) {
+                val containers = LinkedList(nodes.map { TransferContainer(it, jobsPerNode.getValue(it)) })
+                timer.record(timeNanos { transfers = balancer.loadBalance(containers, mode) })
+            }
+
+            val loads = nodes.associateWith { node -> weightOf(jobsPerNode.getValue(node)) }.toMutableMap()
+            transfers.forEach {
+                loads[it.donor()] = loads.getValue(it.donor()) - it.job().weight()
+                loads[it.recipient()] = loads.getValue(it.recipient()) + it.job().weight()
+            }
+            val makespan = "%.3f".format(loads.values.max()!!/average)
+            println("$nodeCount nodes, $jobCount jobs, ${mode.id}: makespan=$makespan transfers=${transfers.size} decision: $timer")
+        }
+    }
+}
+
+/**
+ * Size of what a subtree of 8 nodes sends its parent when collecting, as queues grow: every job's info, or a
+ * summary per node.
+ */
+fun benchmark_collectionMessageSize() {
+    val random = Random(42)
+    val nodes = List(8) { NodeInfo.create(it, "localhost", 40000 + it) }
+    for (jobCount in listOf(1_000, 10_000, 100_000, 1_000_000)) {
+        val jobsPerNode = nodes.associateWith { mutableListOf<Job>() }
+        repeat(jobCount) {
+            jobsPerNode.getValue(nodes[random.nextInt(nodes.size)]).add(
+                Job.create(Job.Type.SQUARE_SUM, 100 + random.nextInt(900)))
+        }
+
+        val jobInfos = jobsPerNode.flatMap { (node, jobs) -> jobs.map { it.getInfo(node) } }
+        val full = Message.create(JobInfoList.create(nodes[0], jobInfos, 1))
+        val summaries = jobsPerNode.map { (node, jobs) -> JobSummary.of(node, jobs) }
+        val summary = Message.create(JobSummaryList.create(nodes[0], summaries, 1))
+
+        println("$jobCount jobs. Job infos: ${full.toJson().length} B json, ${BinaryCodec.encode(full).size} B binary. " +
+                "Summaries: ${summary.toJson().length} B json, ${BinaryCodec.encode(summary).size} B binary")
+    }
+}
+
+/**
+ * Job infos crossing hosts when collecting the whole cluster, with and without the topology aware hierarchy.
+ * Nodes come in id order, which interleaves hosts, the way controllers hand them out. Every node has the same
+ * number of jobs, and every child ships its whole subtree's jobs to its parent.
+ */
+fun benchmark_hierarchyLocality() {
+    for ((hostCount, nodesPerHost) in listOf(2 to 4, 4 to 8, 8 to 8)) {
+        val nodes = List(hostCount*nodesPerHost) {
+            NodeInfo.create(it, "host${it%hostCount}", 40000 + it/hostCount)
+        }
+        for (topologyAware in listOf(false, true)) {
+            val hierarchy = HierarchyBuilder.build(nodes, 2, topologyAware)
+            val crossing = crossHostJobInfos(hierarchy)
+            println("$hostCount hosts, $nodesPerHost nodes each, topologyAware=$topologyAware: " +
+                    "$crossing nodes' worth of job infos cross hosts")
+        }
+    }
+}
+
+/**
+ * Nodes' worth of jobs shipped across hosts collecting [tree], see [benchmark_hierarchyLocality]. Returns the
+ * number of nodes in the subtree through [subtreeSize].
+ */
+private fun crossHostJobInfos(tree: TreeNode, subtreeSize: IntArray = IntArray(1)): Int {
+    if (tree.isLeaf) {
+        subtreeSize[0] = 1
+        return 0
+    }
+    var crossing = 0
+    var size = 0
+    tree.children().forEachIndexed { index, child ->
+        val childSize = IntArray(1)
+        crossing += crossHostJobInfos(child, childSize)
+        size += childSize[0]
+        if (index > 0 && child.node().address() != tree.node().address()) {
+            crossing += childSize[0]
+        }
+    }
+    subtreeSize[0] = size
+    return crossing
+}
+
+/**
+ * Passing the hierarchy down a simulated cluster, whole subtrees vs. shares. Every message is encoded and decoded
+ * as JSON, the default, like it would on the wire, and every node works out what to send on from what it got.
+ * Time is what all of that takes on one thread, bytes are on the wire.
+ */
+fun benchmark_hierarchySetup() {
+    for ((nodeCount, branchingFactor) in listOf(100 to 2, 1000 to 2, 1000 to BuildHierarchy.ADAPTIVE)) {
+        val nodes = List(nodeCount) { NodeInfo.create(it, "localhost", 40000 + it) }
+        val hierarchy = HierarchyBuilder.build(nodes, branchingFactor, false, 1.0)
+        for (compact in listOf(false, true)) {
+            val timer = Metrics.Timer()
+            var jsonBytes = 0L
+            var binaryBytes = 0L
+            repeat(5) {
+                jsonBytes = 0L
+                binaryBytes = 0L
+                timer.record(timeNanos {
+                    val rootOwnerships = if (compact) HierarchyBuilder.ownerships(hierarchy) else null
+                    val pending = ArrayDeque(hierarchyMessages(hierarchy, rootOwnerships))
+                    while (pending.isNotEmpty()) {
+                        val json = pending.remove().toJson()
+                        jsonBytes += json.length
+                        val message = Message.fromJson(json)
+                        binaryBytes += BinaryCodec.encode(message).size
+                        message.hierarchy()?.let { pending.addAll(hierarchyMessages(it, null)) }
+                        message.hierarchyShares()?.let {
+                            val ownerships = HierarchyBuilder.ownershipsOf(message)
+                            val tree = HierarchyBuilder.treeOf(ownerships[0])
+                            pending.addAll(hierarchyMessages(tree, ownerships.associateBy { it.node }))
+                        }
+                    }
+                })
+            }
+            println("$nodeCount nodes, fan-outs ${hierarchy.fanOuts()}, compact=$compact: " +
+                    "${jsonBytes/1024} KiB json, ${binaryBytes/1024} KiB binary, setup: $timer")
+        }
+    }
+}
+
+/**
+ * What the top node of [tree] sends the nodes it's in charge of, subtrees or shares off of [ownerships].
+ */
+private fun hierarchyMessages(
+    tree: TreeNode,
+    ownerships: Map<NodeInfo, HierarchyBuilder.Ownership>?
+): List<Message> {
+    val messages = mutableListOf<Message>()
+    var level = tree
+    while (!level.isLeaf) {
+        level.children().drop(1).forEach { child ->
+            messages.add(if (ownerships == null) {
+                Message.create(child)
+            } else {
+                HierarchyBuilder.sharesMessage(child.node(), ownerships)
+            })
+        }
+        level = level.children()[0]
+    }
+    return messages
+}
+
+/**
+ * Rounds against diffusion on the same workload, 8 nodes running in this process under a binary hierarchy, jobs
+ * sleeping 50 ms each. First a burst of 20 s worth of jobs for the whole cluster lands on a leaf: convergence is
+ * the time until every node has some of it queued, and drain the time until it all got started. Then jobs keep
+ * landing on that leaf for 10 s, at half of what the cluster could run, and throughput is how many got started per
+ * second in the meantime.
+ */
+fun benchmark_diffusion() {
+    val nodeCount = 8
+    val jobMillis = 50
+    val perTick = nodeCount*Config.nodeWorkers*100/jobMillis/2 // <- Every 100 ms
+    for (diffusion in listOf(false, true)) {
+        val nodes = List(nodeCount) { Node(diffusion) }
+        nodes.forEach { node -> Thread { node.start() }.apply { isDaemon = true }.start() }
+        val infos = nodes.map { it.awaitOnline() }
+        send(Message.create(BuildHierarchy.create(2, infos)), infos[0].address(), infos[0].port())
+        Thread.sleep(5_000) // <- Rounds hold off for a cooldown once a node starts, and loads take a while to come in
+        val hot = infos.last()
+
+        var start = System.currentTimeMillis()
+        send(Message.create(List(400*perTick) { Job.create(Job.Type.SQUARE_SUM, jobMillis) }), hot.address(), hot.port())
+        var convergenceMillis = -1L
+        while (nodes.any { it.backlog() > 0 }) {
+            if (convergenceMillis < 0 && nodes.all { it.backlog() > 0 }) {
+                convergenceMillis = System.currentTimeMillis() - start
+            }
+            Thread.sleep(10)
+        }
+        val drainMillis = System.currentTimeMillis() - start
+
+        val startedBefore = Metrics.timer("worker.startLatency")?.count() ?: 0L
+        start = System.currentTimeMillis()
+        var submitted = 0
+        while (System.currentTimeMillis() - start < 10_000) {
+            send(Message.create(List(perTick) { Job.create(Job.Type.SQUARE_SUM, jobMillis) }), hot.address(), hot.port())
+            submitted += perTick
+            Thread.sleep(100)
+        }
+        val seconds = (System.currentTimeMillis() - start)/1000.0
+        val started = (Metrics.timer("worker.startLatency")?.count() ?: 0L) - startedBefore
+        nodes.forEach { it.stop() }
+
+        println("${if (diffusion) "Diffusion" else "Rounds"}: converged in $convergenceMillis ms, " +
+                "drained in $drainMillis ms, ${"%.1f".format(started/seconds)} of " +
+                "${"%.1f".format(submitted/seconds)} jobs/s started")
+        Thread.sleep(2*Config.heartbeatMillis) // <- Whatever was in flight settles down
+    }
+}
+
+private inline fun timeNanos(block: () -> Unit): Long {
+    val start = System.nanoTime()
+    block()
+    return System.nanoTime() - start
+}
+
+/**
+ * Runs [block] a few times to warm up, then returns the average bytes the current thread allocated per run.
+ * Relies on HotSpot's allocation counters.
+ */
+private fun bytesPerIteration(iterations: Int, block: () -> Unit): Long {
+    val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+    repeat(iterations) { block() }
+    val start = threadBean.getThreadAllocatedBytes(threadId)
+    repeat(iterations) { block() }
+    return (threadBean.getThreadAllocatedBytes(threadId) - start)/iterations
+}
+
+private object NullOutputStream: OutputStream() {
+    override fun write(b: Int) {}
+    override fun write(b: ByteArray, off: Int, len: Int) {}
+}
@@ -20,7 +20,10 @@ import java.util.concurrent.atomic.AtomicInteger
 import kotlin.random.Random
 
 
-class Client(private val controllers: List<NodeInfo>, private val branchingFactor: Int = 2) {
+class Client(
+    private val controllers: List<NodeInfo>,
+    private val branchingFactor: Int = BuildHierarchy.ADAPTIVE
+) {
     fun start() {
         sendLog("\n\n---STARTING RUN---\n")
 
@@ -47,6 +50,7 @@ class Client(private val controllers: List<NodeInfo>, private val branchingFacto
         val message = Message.create(BuildHierarchy.create(branchingFactor, nodes))
         val hierarchy = send(message, nodes[0].address(), nodes[0].port())
         hierarchy?.hierarchy()?.let {
+            Logger.i("Fan-out per level: ${it.fanOuts()}")
             printHierarchy(it)
         } ?: Logger.i("No Hierarchy")
 
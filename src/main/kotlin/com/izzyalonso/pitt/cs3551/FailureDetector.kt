@@ -0,0 +1,127 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
+import com.izzyalonso.pitt.cs3551.model.NodeInfo
+import kotlin.math.exp
+import kotlin.math.log10
+import kotlin.math.max
+import kotlin.math.sqrt
+
+
+/**
+ * A phi accrual failure detector. Rather than calling a node dead after a fixed timeout, it remembers how far apart
+ * heartbeats from every node have been and tells how unlikely it is, given that, to have gone this long without
+ * one: phi is -log10 of that probability, so a phi of 8 means one chance in a hundred million. Nodes that are
+ * usually late, or whose heartbeats come in bursts, get more slack than punctual ones.
+ *
+ * Inter-arrival times are assumed to be normally distributed, with a standard deviation of at least
+ * [minStdDevMillis] so a few punctual heartbeats don't make the detector trigger happy. Nodes start out with a
+ * history of a single [expectedIntervalMillis] interval when they're first [watch]ed, so one that never says a
+ * word gets declared dead too.
+ *
+ * The [clock] is there so tests can fake the passing of time; it's System.currentTimeMillis() otherwise.
+ */
+@AnyThread
+class FailureDetector(
+    private val expectedIntervalMillis: Long,
+    private val minStdDevMillis: Double = expectedIntervalMillis/2.0,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    @GuardedBy(who = "this")
+    private val histories = mutableMapOf<NodeInfo, History>()
+
+    /**
+     * Starts keeping an eye on [node], if it wasn't already.
+     */
+    @Synchronized
+    fun watch(node: NodeInfo) {
+        histories.getOrPut(node) { History(clock(), expectedIntervalMillis) }
+    }
+
+    @Synchronized
+    fun forget(node: NodeInfo) {
+        histories.remove(node)
+    }
+
+    /**
+     * Watches [nodes] and forgets about everybody else.
+     */
+    @Synchronized
+    fun watchOnly(nodes: Collection<NodeInfo>) {
+        histories.keys.retainAll(nodes.toSet())
+        nodes.forEach { watch(it) }
+    }
+
+    /**
+     * Records a heartbeat from [node]. Nodes nobody is [watch]ing are ignored.
+     */
+    @Synchronized
+    fun heartbeat(node: NodeInfo) {
+        val history = histories[node] ?: return
+        val now = clock()
+        history.add(now - history.last)
+        history.last = now
+    }
+
+    @Synchronized
+    fun phi(node: NodeInfo): Double {
+        val history = histories[node] ?: return 0.0
+        val elapsed = (clock() - history.last).toDouble()
+        val mean = history.mean()
+        val stdDev = max(history.stdDev(), minStdDevMillis)
+
+        // Logistic approximation of the normal distribution's tail, good enough and doesn't need erf
+        val y = (elapsed - mean)/stdDev
+        val e = exp(-y*(1.5976 + 0.070566*y*y))
+        return if (elapsed > mean) -log10(e/(1.0 + e)) else -log10(1.0 - 1.0/(1.0 + e))
+    }
+
+    /**
+     * The nodes being watched whose phi went over [threshold].
+     */
+    @Synchronized
+    fun suspects(threshold: Double) = histories.keys.filter { phi(it) > threshold }
+
+    /**
+     * The last [windowSize] intervals between heartbeats of a node, in a ring, with running sums to get at their
+     * mean and variance.
+     */
+    private class History(var last: Long, firstIntervalMillis: Long) {
+        private val intervals = LongArray(windowSize)
+        private var count = 0
+        private var next = 0
+        private var sum = 0.0
+        private var sumOfSquares = 0.0
+
+        init {
+            add(firstIntervalMillis)
+        }
+
+        fun add(intervalMillis: Long) {
+            if (count == windowSize) {
+                val oldest = intervals[next].toDouble()
+                sum -= oldest
+                sumOfSquares -= oldest*oldest
+            } else {
+                count++
+            }
+            intervals[next] = intervalMillis
+            next = (next + 1)%windowSize
+            sum += intervalMillis
+            sumOfSquares += intervalMillis.toDouble()*intervalMillis
+        }
+
+        fun mean() = sum/count
+
+        fun stdDev(): Double {
+            val mean = mean()
+            return sqrt(max(sumOfSquares/count - mean*mean, 0.0))
+        }
+    }
+
+    private companion object {
+        const val windowSize = 100
+    }
+}
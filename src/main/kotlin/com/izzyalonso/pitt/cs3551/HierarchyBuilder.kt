@@ -0,0 +1,232 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.model.HierarchyShare
+import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.model.NodeInfo
+import com.izzyalonso.pitt.cs3551.model.TreeNode
+import com.izzyalonso.pitt.cs3551.model.commands.BuildHierarchy
+import com.izzyalonso.pitt.cs3551.util.Config
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.lang.Integer.min
+import java.util.*
+import kotlin.math.max
+import kotlin.math.pow
+
+
+/**
+ * Builds the load balancing hierarchy. The first node is the root, and every node shows up as a leaf exactly once;
+ * a parent is also the first child of itself, all the way down.
+ *
+ * Topology aware, nodes sharing a host (same [NodeInfo.address]) get their own subtree first, and only the first
+ * node of every host takes part in the levels above. Collecting jobs and balancing within a host never leave it,
+ * only rounds further up the tree move things across hosts.
+ *
+ * With a [BuildHierarchy.ADAPTIVE] branching factor, every tree picks its own fan-out per level, see [fanOuts].
+ */
+object HierarchyBuilder {
+
+    fun build(
+        nodes: List<NodeInfo>,
+        branchingFactor: Int,
+        topologyAware: Boolean = Config.topologyAwareHierarchy,
+        messageCostMillis: Double = measuredMessageCostMillis()
+    ): TreeNode {
+
+        val hosts = nodes.groupBy { it.address() } // <- Keeps the order, so the root's host goes first
+        if (!topologyAware || hosts.size == 1) {
+            return buildTree(nodes, branchingFactor, messageCostMillis)
+        }
+
+        val hostTrees = hosts.values.map { buildTree(it, branchingFactor, messageCostMillis) }
+        val root = buildTree(hostTrees.map { it.node() }, branchingFactor, messageCostMillis)
+
+        // Every host's first node is a leaf up there, its host's tree goes under it
+        val leaves = mutableMapOf<NodeInfo, TreeNode>()
+        collectLeaves(root, leaves)
+        hostTrees.forEach { hostTree ->
+            leaves.getValue(hostTree.node()).children().addAll(hostTree.children())
+        }
+        return root
+    }
+
+    /**
+     * Picks how many children parents get at every level of a tree of [nodeCount] nodes, top down.
+     *
+     * A balancing round goes through every level, and at every level a parent hears from each of its children. So
+     * a round takes about depth × ([Config.levelOverheadMillis] + fan-out × [messageCostMillis]); deep trees pay
+     * for the levels, flat ones for the fan-in. This tries every depth and keeps the cheapest, spreading the nodes
+     * evenly over the levels.
+     */
+    fun fanOuts(
+        nodeCount: Int,
+        messageCostMillis: Double,
+        levelOverheadMillis: Double = Config.levelOverheadMillis
+    ): List<Int> {
+
+        if (nodeCount <= 1) {
+            return listOf()
+        }
+        var bestDepth = 1
+        var bestCost = Double.MAX_VALUE
+        var depth = 1
+        while (true) {
+            val fanOut = ceilRoot(nodeCount, depth)
+            val cost = depth*(levelOverheadMillis + fanOut*messageCostMillis)
+            if (cost < bestCost) {
+                bestCost = cost
+                bestDepth = depth
+            }
+            if (fanOut == 2) {
+                break // <- Can't get any deeper
+            }
+            depth++
+        }
+
+        // Whatever levels above covered, the ones left split the rest evenly
+        val fanOuts = mutableListOf<Int>()
+        var covered = 1
+        for (level in 0 until bestDepth) {
+            val fanOut = ceilRoot((nodeCount + covered - 1)/covered, bestDepth - level)
+            fanOuts.add(fanOut)
+            covered *= fanOut
+        }
+        return fanOuts
+    }
+
+    /**
+     * The mean round trip of pooled requests so far, or [Config.messageCostMillis] if there weren't any.
+     */
+    private fun measuredMessageCostMillis(): Double {
+        val timer = Metrics.timer("pool.request")
+        return if (timer == null || timer.count() == 0L) Config.messageCostMillis else timer.meanMillis()
+    }
+
+    /**
+     * The smallest fan-out, 2 at least, such that [degree] levels of it cover [value] nodes.
+     */
+    private fun ceilRoot(value: Int, degree: Int): Int {
+        var root = max(2, value.toDouble().pow(1.0/degree).toInt() - 1)
+        while (root.toDouble().pow(degree) < value) {
+            root++
+        }
+        return root
+    }
+
+    /**
+     * A bit haphazard IMO. Could be better, but works.
+     */
+    private fun buildTree(nodes: List<NodeInfo>, branchingFactor: Int, messageCostMillis: Double): TreeNode {
+        val fanOuts = if (branchingFactor == BuildHierarchy.ADAPTIVE) fanOuts(nodes.size, messageCostMillis) else listOf()
+        val fanOut = { level: Int -> fanOuts.getOrNull(level) ?: max(branchingFactor, 2) }
+
+        // Create a list of leaves
+        val leaves = LinkedList<TreeNode>()
+        nodes.forEach {
+            leaves.add(TreeNode.create(it))
+        }
+
+        // First leaf will be the root
+        val root = leaves.remove()
+        val parents = LinkedList<Pair<TreeNode, Int>>() // <- And their levels
+        parents.add(Pair(root, 0))
+
+        while (leaves.isNotEmpty()) {
+            val (parent, level) = parents.remove()
+            parent.children().add(TreeNode.create(parent.node()))
+            parents.add(Pair(parent.children()[0], level + 1)) // We can probably be smarter about this, comes a point when we don't need to add more
+            repeat(min(fanOut(level) - 1, leaves.size)) {
+                val nextLeaf = leaves.remove().assignParent(parent.node())
+                // Exploiting the fact that a member of an autovalue class is not mutable
+                // Really shouldn't be doing this, but who cares
+                parent.children().add(nextLeaf)
+                parents.add(Pair(nextLeaf, level + 1))
+            }
+        }
+
+        return root
+    }
+
+    /**
+     * Breaks a hierarchy down into what every node in it owns.
+     */
+    fun ownerships(hierarchy: TreeNode): Map<NodeInfo, Ownership> {
+        val ownerships = mutableMapOf<NodeInfo, Ownership>()
+        addOwnerships(hierarchy, ownerships)
+        return ownerships
+    }
+
+    /**
+     * The message passing [node] the ownerships of everybody in its subtree, which is what it needs to pass
+     * everybody else's on. Its own goes first.
+     */
+    fun sharesMessage(node: NodeInfo, ownerships: Map<NodeInfo, Ownership>): Message {
+        val nodes = mutableListOf<NodeInfo>()
+        val indices = mutableMapOf<NodeInfo, Int>()
+        val index = { it: NodeInfo -> indices.getOrPut(it) { nodes.add(it); nodes.size - 1 } }
+
+        val shares = mutableListOf<HierarchyShare>()
+        val pending = ArrayDeque<NodeInfo>()
+        pending.add(node)
+        while (pending.isNotEmpty()) {
+            val ownership = ownerships[pending.remove()] ?: continue
+            val levels = ownership.levels.map { level -> level.map(index) }
+            shares.add(HierarchyShare.create(index(ownership.node), ownership.parent?.let(index) ?: -1, levels))
+            ownership.levels.forEach { pending.addAll(it) }
+        }
+        return Message.createHierarchyShares(shares, nodes)
+    }
+
+    /**
+     * The other way around, the recipient's ownership first.
+     */
+    fun ownershipsOf(message: Message): List<Ownership> {
+        val nodes = message.hierarchyNodes() ?: return listOf()
+        return message.hierarchyShares()?.map { share ->
+            Ownership(
+                nodes[share.node()],
+                if (share.parent() < 0) null else nodes[share.parent()],
+                share.levels().map { level -> level.map { nodes[it] } }
+            )
+        } ?: listOf()
+    }
+
+    /**
+     * Puts an ownership back together as the hierarchy it's in charge of. Children it doesn't share levels with
+     * come out as leaves, their subtrees are theirs to know about.
+     */
+    fun treeOf(ownership: Ownership): TreeNode {
+        var tree = TreeNode.create(ownership.node)
+        for (level in ownership.levels.reversed()) {
+            val parent = TreeNode.create(ownership.node)
+            parent.children().add(tree)
+            level.forEach { parent.children().add(TreeNode.create(it).assignParent(ownership.node)) }
+            tree = parent
+        }
+        return ownership.parent?.let { tree.assignParent(it) } ?: tree
+    }
+
+    private fun addOwnerships(top: TreeNode, ownerships: MutableMap<NodeInfo, Ownership>) {
+        val levels = mutableListOf<List<NodeInfo>>()
+        var tree = top
+        while (!tree.isLeaf) {
+            val others = tree.children().drop(1) // <- The first one is the node itself
+            levels.add(others.map { it.node() })
+            others.forEach { addOwnerships(it, ownerships) }
+            tree = tree.children()[0]
+        }
+        ownerships[top.node()] = Ownership(top.node(), top.parent(), levels)
+    }
+
+    private fun collectLeaves(tree: TreeNode, leaves: MutableMap<NodeInfo, TreeNode>) {
+        if (tree.isLeaf) {
+            leaves[tree.node()] = tree
+        }
+        tree.children().forEach { collectLeaves(it, leaves) }
+    }
+
+    /**
+     * A node's parent and the children it owns at every level it's a parent in, top down, see [HierarchyShare]
+     * for how it travels.
+     */
+    class Ownership(val node: NodeInfo, val parent: NodeInfo?, val levels: List<List<NodeInfo>>)
+}
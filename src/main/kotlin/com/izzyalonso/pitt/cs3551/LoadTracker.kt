@@ -2,19 +2,52 @@ package com.izzyalonso.pitt.cs3551
 
 import com.izzyalonso.pitt.cs3551.annotation.AnyThread
 import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
-import java.util.*
 import java.util.concurrent.TimeUnit
+import kotlin.math.exp
 
 
 /**
  * A simple mechanism to keep track of the load.
+ *
+ * Time is split in buckets of [bucketMillis] and the tracker remembers, in a ring, how much work and tracked time
+ * (work + sleep) had gone by at the start of each of the last [maxWindowSeconds] worth of buckets. The load over a
+ * window is then the difference between now and the window's first bucket, so memory doesn't grow with the number
+ * of clicks and getting the load takes the same time whatever the window. Time in between the end of a cycle and
+ * the start of the next one isn't tracked, same as before.
+ *
+ * On top of that, it keeps exponentially weighted moving averages of the busy fraction over a few [Horizon]s. These
+ * are updated on every click, taking into account how long the cycle that just ended lasted, so they don't depend on
+ * how often anybody asks.
+ *
+ * The [clock] is there so tests can simulate long runs; it's System.nanoTime() otherwise.
  */
-@AnyThread // NOTE: I don't care to tighten the critical section (records) as getLoad() should be pretty fast
-class LoadTracker {
+@AnyThread // NOTE: I don't care to tighten the critical sections, they're all pretty short
+class LoadTracker(private val clock: () -> Long = System::nanoTime) {
 
+    private val origin = clock()
+
+    // Cumulative work and tracked nanos at the start of each bucket, indexed by bucket number modulo the size
+    @GuardedBy(who = "this")
+    private val workAtBucket = LongArray(bucketCount)
+    @GuardedBy(who = "this")
+    private val trackedAtBucket = LongArray(bucketCount)
+    @GuardedBy(who = "this")
+    private var lastBucket = 0L
+
+    // Totals up to the last click
+    @GuardedBy(who = "this")
+    private var workNanos = 0L
+    @GuardedBy(who = "this")
+    private var trackedNanos = 0L
+
+    // One moving average per horizon
+    @GuardedBy(who = "this")
+    private val averages = DoubleArray(horizons.size)
+
+    @GuardedBy(who = "this")
+    private var state = State.IDLE
     @GuardedBy(who = "this")
-    private val records = LinkedList<Record>()
-    private var lastClick = 0L
+    private var lastClick = origin
 
     private var done = false
 
@@ -23,137 +56,142 @@ class LoadTracker {
      * Signals the tracker the start of a sleep cycle.
      */
     fun startSleep() = synchronized(this) {
-        if (done) {
-            return
-        }
-        lastClick = System.nanoTime()
+        click(State.SLEEP)
     }
 
     /**
      * Signals the tracker the end of a sleep cycle.
      */
     fun endSleep() = synchronized(this) {
-        if (done) {
-            return
-        }
-        click(Record.Type.SLEEP)
+        click(State.IDLE)
     }
 
     /**
      * Signals the tracker the start of a work cycle.
      */
     fun startWork() = synchronized(this) {
-        if (done) {
-            return
-        }
-        lastClick = System.nanoTime()
+        click(State.WORK)
     }
 
     /**
      * Signals the tracker the end of a work cycle.
      */
     fun endWork() = synchronized(this) {
-        if (done) {
-            return
-        }
-        click(Record.Type.WORK)
+        click(State.IDLE)
     }
 
     /**
-     * Adds the chunk of time to the record and locks the tracker. Idempotent.
+     * Adds the ongoing cycle to the record and locks the tracker. Idempotent.
      */
     fun done() = synchronized(this) {
-        if (done) {
-            return
-        }
-
-        val elapsed = System.nanoTime() - lastClick
-        records.first?.addTime(elapsed)
-
+        click(State.IDLE)
         done = true
     }
 
     /**
-     * A common function to perform a click.
+     * A common function to perform a click. Closes whatever cycle was going on and starts a new one.
      */
-    private fun click(type: Record.Type) {
-        // If the types mismatch, add a new record of length 0
-        if (type != records.firstOrNull()?.type) {
-            records.addFirst(Record(type))
+    private fun click(newState: State) {
+        if (done) {
+            return
         }
-
-        // Add the elapsed time to the most recent record
-        val elapsed = System.nanoTime() - lastClick
-        records.firstOrNull()?.addTime(elapsed) // This is an optimization to keep records small
-
-        // Record the click time
-        lastClick = System.nanoTime()
+        val now = clock()
+        advance(now)
+        for (horizon in horizons) {
+            averages[horizon.ordinal] = averageAt(horizon, now)
+        }
+        workNanos = workAt(now)
+        trackedNanos = trackedAt(now)
+        state = newState
+        lastClick = now
     }
 
     /**
-     * Gets the load as a unit percentage over the last n [seconds]. -1 to get a complete report.
+     * Fills in the buckets that started since the last time we looked. If we've been away longer than the ring
+     * covers, only the most recent ones matter.
      */
-    fun getLoad(seconds: Int = 1): Double = synchronized(this) {
-        // Just a definition; no records means no load. Shouldn't happen though
-        if (records.isEmpty()) {
-            return 0.0
+    private fun advance(now: Long) {
+        val bucket = bucketOf(now)
+        var next = maxOf(lastBucket + 1, bucket - bucketCount + 1)
+        while (next <= bucket) {
+            val start = origin + next*bucketNanos
+            workAtBucket[(next%bucketCount).toInt()] = workAt(start)
+            trackedAtBucket[(next%bucketCount).toInt()] = trackedAt(start)
+            next++
         }
+        lastBucket = maxOf(lastBucket, bucket)
+    }
 
-        // Translate the cap to nanos and calculate time elapsed since the last click
-        val cap = if (seconds == -1) {
-            Long.MAX_VALUE
-        } else {
-            TimeUnit.SECONDS.toNanos(seconds.toLong())
-        }
+    private fun workAt(time: Long) = workNanos + if (state == State.WORK) time - lastClick else 0L
 
-        // The time elapsed since the last clock should be of the same type as the most recent block
-        var totalTime = 0L
-        var workTime = 0L
+    private fun trackedAt(time: Long) = trackedNanos + if (state != State.IDLE) time - lastClick else 0L
 
-        // Gather the total and work times off of the record keeping in mind the cap
-        for (record in records) {
-            if (totalTime >= cap) {
-                break
-            }
+    private fun bucketOf(time: Long) = (time - origin)/bucketNanos
 
-            val delta = getDeltaWithCap(totalTime, record.timeNanos, cap)
-            if (record.type == Record.Type.WORK) {
-                workTime += delta
-            }
-            totalTime += delta
+    /**
+     * The moving average at [time], the current cycle being the newest sample. Untracked time doesn't count.
+     */
+    private fun averageAt(horizon: Horizon, time: Long): Double {
+        val average = averages[horizon.ordinal]
+        if (state == State.IDLE) {
+            return average
         }
+        val busy = if (state == State.WORK) 1.0 else 0.0
+        val decay = exp(-(time - lastClick).toDouble()/horizon.nanos)
+        return busy + (average - busy)*decay
+    }
 
-        // The load is the fraction of
-        return workTime.toDouble()/totalTime
+    /**
+     * Gets the moving average of the load over the given [horizon], as a unit percentage.
+     */
+    fun getAverageLoad(horizon: Horizon): Double = synchronized(this) {
+        averageAt(horizon, if (done) lastClick else clock())
     }
 
     /**
-     * Calculates a delta that won't go over the requested cap.
+     * Gets the load as a unit percentage over the last n [seconds], up to [maxWindowSeconds]. -1 to get a complete
+     * report. Includes the ongoing cycle.
      */
-    private fun getDeltaWithCap(currentValue: Long, desiredDelta: Long, cap: Long): Long {
-        return if (currentValue + desiredDelta < cap) {
-            desiredDelta
-        } else {
-            cap - currentValue
+    fun getLoad(seconds: Int = 1): Double = synchronized(this) {
+        val now = if (done) lastClick else clock()
+        advance(now)
+
+        var work = workAt(now)
+        var tracked = trackedAt(now)
+        if (seconds != -1) {
+            val windowBuckets = minOf(seconds, maxWindowSeconds)*bucketsPerSecond
+            val first = bucketOf(now) + 1 - windowBuckets
+            if (first > 0) {
+                work -= workAtBucket[(first%bucketCount).toInt()]
+                tracked -= trackedAtBucket[(first%bucketCount).toInt()]
+            }
         }
+
+        // Just a definition; no records means no load
+        return if (tracked <= 0) 0.0 else work.toDouble()/tracked
+    }
+
+    private enum class State {
+        IDLE, WORK, SLEEP
     }
 
     /**
-     * A record. Holds a [type] and a [timeNanos].
+     * How far back moving averages look, roughly. Older samples still count, just less and less.
      */
-    private data class Record(internal val type: Type, internal var timeNanos: Long = 0) {
-
-        /**
-         * Adds a [deltaNanos] to the record.
-         *
-         * Should be positive. I, however, trust the correctness of my code, so skipping the check.
-         */
-        fun addTime(deltaNanos: Long) {
-            timeNanos += deltaNanos
-        }
+    enum class Horizon(seconds: Long) {
+        SHORT(1), MEDIUM(10), LONG(60);
 
-        internal enum class Type {
-            WORK, SLEEP
-        }
+        internal val nanos = TimeUnit.SECONDS.toNanos(seconds).toDouble()
+    }
+
+    private companion object {
+        const val bucketMillis = 10L
+        const val maxWindowSeconds = 10
+        const val bucketsPerSecond = (1000/bucketMillis).toInt()
+        // One more than the longest window, which needs the bucket right before it
+        const val bucketCount = maxWindowSeconds*bucketsPerSecond + 1
+
+        val bucketNanos = TimeUnit.MILLISECONDS.toNanos(bucketMillis)
+        val horizons = Horizon.values() // <- values() copies the array every time
     }
 }
@@ -1,20 +1,52 @@
 package com.izzyalonso.pitt.cs3551
 
+import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
 import com.izzyalonso.pitt.cs3551.model.Message
 import com.izzyalonso.pitt.cs3551.net.ServerSocketInterface
 import com.izzyalonso.pitt.cs3551.util.Logger
+import java.io.BufferedWriter
+import java.io.File
+import java.io.FileWriter
 import java.net.Socket
 
 const val logNodePort = 65439
 
-class LogNode {
+/**
+ * Prints whatever nodes log. If given a [logFile], lines get appended to it too.
+ */
+class LogNode(private val logFile: File? = null) {
+    @GuardedBy(who = "this")
+    private val fileWriter: BufferedWriter? = logFile?.let { BufferedWriter(FileWriter(it, true), 64*1024) }
+
     fun start() {
         ServerSocketInterface(object: ServerSocketInterface.ListenerAdapter() {
             override fun onMessageReceived(message: Message, socket: Socket) {
                 message.log()?.let {
-                    Logger.i(it)
+                    write(listOf(it))
+                }
+                message.logs()?.let {
+                    write(it)
+                }
+            }
+        }, nio = ServerSocketInterface.NioConfig.fromConfig()).startListening(logNodePort)
+    }
+
+    /**
+     * Writes a batch in one go; one print and, if logging to a file, one flush per batch rather than per line.
+     */
+    private fun write(lines: List<String>) {
+        if (lines.isEmpty()) {
+            return
+        }
+        Logger.i(lines.joinToString("\n"))
+        fileWriter?.let { writer ->
+            synchronized(this) {
+                lines.forEach {
+                    writer.write(it)
+                    writer.newLine()
                 }
+                writer.flush()
             }
-        }).startListening(logNodePort)
+        }
     }
 }
@@ -7,50 +7,124 @@ import com.izzyalonso.pitt.cs3551.model.commands.BuildHierarchy
 import com.izzyalonso.pitt.cs3551.model.notices.NodeOnline
 import com.izzyalonso.pitt.cs3551.net.*
 import com.izzyalonso.pitt.cs3551.util.ConditionLock
+import com.izzyalonso.pitt.cs3551.util.Config
 import com.izzyalonso.pitt.cs3551.util.Logger
 import com.izzyalonso.pitt.cs3551.util.MappingCollector
-import java.lang.Integer.min
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.io.IOException
 import java.net.Socket
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
-import kotlin.NoSuchElementException
-import kotlin.math.abs
 import kotlin.math.max
 
-private const val imbalanceThreshold = 0.1
-
-class Node {
-    @GuardedBy(who = "this")
-    private val queue = LinkedList<Job>()
+private const val metricsReportPeriodMillis = 10_000L
+// How often the control loop checks loads, now that it doesn't run jobs itself
+private const val controlPeriodMillis = 250L
+// Tries for the replies to collect requests, losing one stalls a whole level. Requests themselves aren't retried, a
+// child that got one twice would start collecting all over again in the middle of the round
+private const val collectAttempts = 3
+// Longest a node goes without reporting its load, changed or not, in case the parent missed an update
+private const val loadReportMaxSilenceMillis = 5_000L
+// How many layers of the hierarchy a node out of work looks through for some to steal, its siblings being the first
+private const val stealLayers = 3
+// How long to wait after nobody had anything to spare before asking around again
+private const val stealBackoffMillis = 1_000L
 
+/**
+ * A node, balancing in rounds over the subtree it owns, or by [diffusion] with its parent and children.
+ */
+class Node(private val diffusion: Boolean = Config.diffusion) {
     private val running = AtomicBoolean(false)
     private val hierarchySet = AtomicBoolean(false)
     private val balancing = AtomicBoolean(false)
-    private val lastBalanceOp = AtomicLong(0L)
+    // Decides when this node's subtree is worth a round
+    private val trigger = BalancingTrigger()
+    // When this node last went into balancing mode, to get out of it if the operation never gets back to us
+    private val balancingSince = AtomicLong(0L)
+    // The round this node is collecting for, its own or its parent's. Replies meant for any other are stale
+    @Volatile private var collectingRound = 0L
+    // Bytes this process had sent to other hosts by then, to tell how much a round took
+    private val balancingStartBytes = AtomicLong(0L)
     private val operationsToResume = AtomicInteger()
-
-    private val workLock = Object()
+    // Held while collecting for a balancing operation, ours or our parent's, so they don't step on each other
+    private val balancingLock = Object()
+    private val connectedLatch = CountDownLatch(1)
+    private lateinit var server: ServerSocketInterface
+
+    // Jobs keep running while balancing, transfers only consider jobs in the snapshot taken when collecting
+    private val workers = WorkerPool(Config.nodeWorkers) { doWork(it) }
+    @Volatile private var snapshotVersion = Long.MAX_VALUE
+    // Fetches and pushes jobs when balancing, so a round doesn't go through donors one after the other
+    private val transferExecutor = Executors.newFixedThreadPool(Config.transferFanOut) { runnable ->
+        Thread(runnable, "lb-transfer").apply { isDaemon = true }
+    }
+    private var lastMetricsReport = 0L
+    // The subtree's load as of the last control loop iteration, and as last reported to the parent
+    @Volatile private var subtreeLoad: LoadInfo? = null
+    @Volatile private var reportedLoad: LoadInfo? = null
+    @Volatile private var lastLoadReport = 0L
+    private var lastLoadCheck = 0L
+
+    // Keeps an eye on the parent and the nodes this node owns, see checkFailures
+    private val failureDetector = FailureDetector(Config.heartbeatMillis)
+    // Heartbeats go out on their own thread, a balancing round can keep the control loop busy for longer than it
+    // takes to be declared dead
+    private val heartbeatExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "lb-heartbeat").apply { isDaemon = true }
+    }
+    // Our parent's parent as of its last heartbeat, who to turn to if the parent dies. If the parent is the root,
+    // who'd take over from it instead
+    @Volatile private var grandparent: NodeInfo? = null
+    @Volatile private var successors = listOf<NodeInfo>()
+    // Who's around to steal work from, nearest first, as of the parent's last heartbeat
+    @Volatile private var neighborhood = listOf<List<NodeInfo>>()
+    private var nextStealMillis = 0L
+    // The parent's and children's backlogs as of their last heartbeats, for diffusion, plus whatever we pushed to
+    // them since so we don't keep pushing on stale news
+    private val neighborBacklogs = ConcurrentHashMap<NodeInfo, Double>()
+    private var lastDiffusion = 0L
+    // Children declared dead, with the level they were at and who took their place, if anybody did yet
+    @GuardedBy(who = "balancingLock")
+    private val deadChildren = mutableMapOf<NodeInfo, DeadChild>()
+    // The dead parent whose orphans this node takes in, having taken its place, and whether they have a level yet
+    @GuardedBy(who = "balancingLock")
+    private var adoptingFor: NodeInfo? = null
+    @GuardedBy(who = "balancingLock")
+    private var adoptedLevel = false
 
     lateinit var thisNode: NodeInfo
-    // The hierarchy this node is in charge of
-    private lateinit var hierarchy: TreeNode
+    // The hierarchy this node is in charge of, patched up in place of dead nodes
+    @Volatile private lateinit var hierarchy: TreeNode
 
     // Maps a node to a level; this node's children are at level 0
     @GuardedBy(who = "this") // <- also readonly
     private lateinit var nodeLevelMap: Map<NodeInfo, Int>
     // List of levels mapping node to load
     @GuardedBy(who = "this") // <- includes all the maps as well
-    private lateinit var levelLoads: List<MutableMap<NodeInfo, Double>>
+    private lateinit var levelLoads: List<MutableMap<NodeInfo, LoadInfo>>
     // This node's load, good to cache
-    private var currentLoad = 0.0
-
-    private lateinit var loadTracker: LoadTracker
+    private lateinit var currentLoad: LoadInfo
 
     private lateinit var jobCollectors: List<MappingCollector<NodeInfo, List<JobInfo>>>
+    // What each of the above ended up with, unresponsive children left out
+    private lateinit var collectedJobs: MutableList<Map<NodeInfo, List<JobInfo>>>
+    // Summaries of the subtrees this node owns, when collecting summaries
+    private lateinit var summaryCollector: MappingCollector<NodeInfo, List<JobSummary>>
+    // Who this node asked to collect in the current round, to pass it on if we get left out of it
+    @GuardedBy(who = "balancingLock")
+    private var askedNodes = listOf<NodeInfo>()
+    // The last round we were told was over before we got to it, see the roundOver handler
+    @GuardedBy(who = "balancingLock")
+    private var skippedRound = 0L
     // Metadata to be able to make decisions on how to move jobs around
     private lateinit var jobNodeMapping: List<MutableMap<JobInfo, NodeInfo>>
 
@@ -68,25 +142,52 @@ class Node {
         sendLogSync("WE GOT SOME FAILURE HERE. $thisNode")
     }
 
+    /**
+     * Stops the node as if it died: heartbeats stop right away, every connection to and from it is closed, so
+     * nobody gets an answer out of it anymore, and its control loop winds down after its current period.
+     */
+    fun stop() {
+        running.set(false)
+        heartbeatExecutor.shutdownNow()
+        server.stopListening()
+        ConnectionPool.clear() // <- Shared with other nodes in the same process, they'll just connect again
+    }
+
+    /**
+     * Waits until the node is listening, and tells who it turned out to be.
+     */
+    internal fun awaitOnline(): NodeInfo {
+        connectedLatch.await()
+        return thisNode
+    }
+
+    /**
+     * The node's parent as of now, null at the root or before there's a hierarchy.
+     */
+    internal fun currentParent(): NodeInfo? = if (hierarchySet.get()) hierarchy.parent() else null
+
+    /**
+     * Weight of the jobs waiting to be picked up, per worker.
+     */
+    internal fun backlog() = workers.backlog()
+
     private fun startInternal() {
         sendLog("Starting node.")
         running.set(true)
 
-        loadTracker = LoadTracker()
-
         val controllerPort = System.getenv()[NodeController.ENV_CONTROLLER_PORT]?.toInt()
         val nodeId = System.getenv()[NodeController.ENV_NODE_ID]?.toInt() ?: -1
+        val address = System.getenv()[NodeController.ENV_HOST_ADDRESS] ?: "localhost"
         if (controllerPort == null) {
             println("Environment variable ${NodeController.ENV_CONTROLLER_PORT} needs to be set.")
         }
 
         sendLog("Controller at $controllerPort")
 
-        val connectedLatch = CountDownLatch(1)
-        ServerSocketInterface(object: ServerSocketInterface.ListenerAdapter() {
+        server = ServerSocketInterface(object: ServerSocketInterface.ListenerAdapter() {
             override fun onConnected(port: Int) {
                 // It's good to know who we are
-                thisNode = NodeInfo.create(nodeId, "localhost", port)
+                thisNode = NodeInfo.create(nodeId, address, port) // <- Has to match what the controller reported
 
                 Logger.i("Node connected at $thisNode")
                 sendLog("Node connected at $thisNode")
@@ -103,10 +204,21 @@ class Node {
                 handleMessage(message, socket)
             }
 
+            // Anything waiting on the balancing lock, a collection, or a bunch of other nodes
+            override fun mayBlock(message: Message) = message.buildHierarchy() != null
+                    || message.hierarchy() != null
+                    || message.hierarchyShares() != null
+                    || message.adoption() != null
+                    || message.collectJobs() != null
+                    || message.roundOver() != null
+                    || message.balancingPlan() != null
+                    || message.loadBalancingResult() != null
+
             override fun onDisconnected() {
                 running.set(false)
             }
-        }).startListeningAsync()
+        }, nio = ServerSocketInterface.NioConfig.fromConfig())
+        server.startListeningAsync()
 
         // Wait til we're connected
         connectedLatch.await()
@@ -117,107 +229,164 @@ class Node {
         }.await()
         sendLog("$thisNode has a hierarchy: $hierarchy")
 
-        lastBalanceOp.set(System.currentTimeMillis())
+        trigger.roundOver() // <- Give loads a cooldown's worth of time to settle in
 
+        // Jobs run in the worker pool, this thread keeps an eye on the loads
+        workers.start()
+        heartbeatExecutor.scheduleAtFixedRate({ sendHeartbeats() }, 0, Config.heartbeatMillis, TimeUnit.MILLISECONDS)
         while (running.get()) {
-            //sendLog("$thisNode is running, queue size: ${queue.size}")
-            // Should prolly make this a monitored lock instead ¯\_(ツ)_/¯
-            // Oh well, worst case scenario we lose 50 ms
-            if (balancing.get()) {
-                sendLog("NODE $thisNode WAITING FOR BALANCING TO BE OVER")
-            }
-            while (balancing.get()) {
-                try {
-                    Thread.sleep(50)
-                } catch (Ix: InterruptedException) {
-                    // Timeout
-                }
+            try {
+                Thread.sleep(controlPeriodMillis)
+            } catch (ix: InterruptedException) {
+                // Timeout
             }
 
-            // Dequeue work
-            val work: Job?
-            synchronized(this) {
-                work = queue.removeFirstOrNull()
-            }
+            // Get the load over the last two seconds, busy fraction across all workers, plus averages and backlog
+            currentLoad = LoadInfo.create(
+                thisNode,
+                workers.getLoad(2),
+                workers.getAverageLoad(LoadTracker.Horizon.SHORT),
+                workers.getAverageLoad(LoadTracker.Horizon.MEDIUM),
+                workers.getAverageLoad(LoadTracker.Horizon.LONG),
+                workers.backlog()
+            )
+            //sendLog("$thisNode current load: $currentLoad")
 
-            // Work or sleep
-            if (work == null) {
-                //sendLog("$thisNode is going to sleep")
-                loadTracker.startSleep()
-                synchronized(workLock) {
-                    workLock.wait(250) // Go to sleep
-                }
-                loadTracker.endSleep()
-                //sendLog("$thisNode woke up")
-            } else {
-                loadTracker.startWork()
-                doWork(work) // Execute the request
-                loadTracker.endWork()
-                //sendLog("$thisNode completed $work")
+            reportMetrics()
+            checkFailures()
+            if (Config.workStealing && !balancing.get()) {
+                stealIfIdle()
             }
 
-            // Get the load over the last two seconds
-            currentLoad = loadTracker.getLoad(2)
-            //sendLog("$thisNode current load: $currentLoad")
+            if (balancing.get() && System.currentTimeMillis() - balancingSince.get() > Config.balancingTimeoutMillis) {
+                // Whoever ran the operation gave up on us, or died
+                sendLog("$thisNode never heard back from its balancing operation, moving on")
+                Metrics.increment("balance.abandoned")
+                stopBalancing()
+            }
 
             val highestLevelLoads = highestLevelChildrenLoads()
 
-            // TODO? Allow non global roots to perform load balancing without trigger a full scale operation?
-            // TODO  This requires to take my already clockwork synchronization up yet another notch. Not sure
-            // TODO  I want to do this. A&B territory & very overworked.
-            if (hierarchy.parent() == null) {
+            // Every parent keeps its own subtree in check. The imbalance could be between subtrees further up, but
+            // that's for whoever owns those to figure out; this way only the subtree that needs it gets involved
+            if (diffusion) {
+                diffuse()
+            } else if (!hierarchy.isLeaf && !balancing.get()) {
                 //sendLog("Level loads: $levelLoads")
                 //sendLog("Checking balance...")
                 if (checkImbalance(highestLevelLoads)) {
-                    sendLog("Triggering load balancing operation")
+                    balanceSubtree()
+                }
+            }
+            if (hierarchy.parent() != null) {
+                // Communicate subtree's load to parent
+                subtreeLoad = LoadInfo.average(thisNode, highestLevelLoads)
+                reportLoad()
+            }
+        }
 
-                    // Gather information about the state of the cluster, will take some time
-                    val jobsPerNode = collectJobInfos()
-                    sendLog("Collected jobs: $jobsPerNode")
+        heartbeatExecutor.shutdownNow()
+        workers.stop()
+    }
 
-                    // Create the transfer containers
-                    val transferContainers = LinkedList<TransferContainer>()
-                    hierarchy.children().forEach {
-                        val node = it.node()
-                        transferContainers.add(TransferContainer(node, jobsPerNode[node] ?: listOf()))
-                    }
-                    sendLog("Transfers containers created")
-
-                    // Execute the operation
-                    val transfers = loadBalance(transferContainers)
-                    sendLog("Transfers: $transfers")
-                    // Classify the transfers and send the results to the relevant nodes
-                    val transfersPerNode = mutableMapOf<NodeInfo, MutableList<JobTransfer>>()
-                    for (node in jobsPerNode.keys) {
-                        transfersPerNode[node] = mutableListOf()
-                    }
-                    for (transfer in transfers) {
-                        transfersPerNode[transfer.donor()]?.add(transfer)
-                        transfersPerNode[transfer.recipient()]?.add(transfer)
-                    }
+    /**
+     * Runs a load balancing operation over the subtree this node is in charge of, the whole cluster at the root.
+     * Nodes outside of the subtree don't get involved.
+     */
+    private fun balanceSubtree() = synchronized(balancingLock) {
+        if (balancing.get()) {
+            return // <- Our parent pulled us into a bigger operation while we were waiting
+        }
+        sendLog("$thisNode triggering load balancing operation")
+        startBalancing(Random().nextLong()) // <- Cleared once we've fetched our jobs, like everybody else
 
-                    transfersPerNode.forEach {
-                        sendLog("EXECUTOR's RESULT: $it")
-                    }
+        if (Config.summaryCollection) {
+            balanceSubtreeBySummaries()
+            return
+        }
 
-                    transfersPerNode.forEach { (node, transfers) ->
-                        if (node != thisNode) {
-                            sendAsync(Message.create(LoadBalancingResult.create(transfers)), node.address(), node.port())
-                        }
-                    }
-                    propagatedLoadBalancingOperation(transfersPerNode[thisNode]!!, 1)
+        // Gather information about the state of the subtree, will take some time
+        val jobsPerNode = collectJobInfos()
+        sendLog(LogLevel.DEBUG) { "Collected jobs: $jobsPerNode" }
 
-                    lastBalanceOp.set(System.currentTimeMillis())
-                }
-            } else {
-                // Communicate subtree's load to parent
-                val parent = hierarchy.parent()
-                val averageLoad = highestLevelLoads.average()
-                sendAsync(Message.create(LoadInfo.create(thisNode, averageLoad)), parent.address(), parent.port())
+        // Create the transfer containers, for the subtrees that answered
+        val transferContainers = LinkedList<TransferContainer>()
+        hierarchy.children().forEach {
+            val node = it.node()
+            jobsPerNode[node]?.let { jobs ->
+                transferContainers.add(TransferContainer(node, jobs))
+            }
+        }
+        sendLog(LogLevel.DEBUG) { "Transfers containers created" }
+
+        // Execute the operation
+        val transfers = loadBalance(transferContainers)
+        val decidedAtMillis = System.currentTimeMillis()
+        sendLog(LogLevel.DEBUG) { "Transfers: $transfers" }
+        // Classify the transfers and send the results to the relevant nodes
+        val transfersPerNode = mutableMapOf<NodeInfo, MutableList<JobTransfer>>()
+        for (node in jobsPerNode.keys) {
+            transfersPerNode[node] = mutableListOf()
+        }
+        for (transfer in transfers) {
+            transfersPerNode[transfer.donor()]?.add(transfer)
+            transfersPerNode[transfer.recipient()]?.add(transfer)
+        }
+
+        transfersPerNode.forEach {
+            sendLog(LogLevel.DEBUG) { "EXECUTOR's RESULT: $it" }
+        }
+
+        transfersPerNode.forEach { (node, transfers) ->
+            if (node != thisNode) {
+                val result = LoadBalancingResult.create(transfers, decidedAtMillis)
+                sendAsync(Message.create(result), node.address(), node.port())
             }
         }
+        propagatedLoadBalancingOperation(transfersPerNode[thisNode]!!, 1, decidedAtMillis)
 
-        loadTracker.done()
+        trigger.roundOver(System.currentTimeMillis() - balancingSince.get())
+    }
+
+    /**
+     * Same as [balanceSubtree], off of summaries. Every node in the subtree gets its share of the plan, even if
+     * it's empty, so they all know the operation is over.
+     */
+    private fun balanceSubtreeBySummaries() {
+        val subtrees = collectSummaries()
+
+        val start = System.nanoTime()
+        val plan = SummaryBalancer.plan(hierarchy, subtrees)
+        Metrics.record("balance.decisionTime", System.nanoTime() - start)
+        val decidedAtMillis = System.currentTimeMillis()
+        sendLog(LogLevel.DEBUG) { "Plan: $plan" }
+
+        subtrees.values.flatten().forEach { summary ->
+            val node = summary.node()
+            if (node != thisNode) {
+                val share = BalancingPlan.create(plan.filter { it.donor() == node }, decidedAtMillis)
+                sendAsync(Message.create(share), node.address(), node.port())
+            }
+        }
+        executeBalancingPlan(BalancingPlan.create(plan.filter { it.donor() == thisNode }, decidedAtMillis))
+
+        trigger.roundOver(System.currentTimeMillis() - balancingSince.get())
+    }
+
+    /**
+     * Ships this process' metrics to the log every now and then.
+     */
+    private fun reportMetrics() {
+        val now = System.currentTimeMillis()
+        if (now - lastMetricsReport < metricsReportPeriodMillis) {
+            return
+        }
+        lastMetricsReport = now
+        val rounds = Metrics.count("balance.rounds")
+        val perRound = if (rounds == 0L) "" else " interHostBytesPerRound=${Metrics.count("balance.interHostBytes")/rounds}"
+        val steals = Metrics.count("steal.attempts")
+        val stealRate = if (steals == 0L) "" else " stealSuccessRate=${"%.2f".format(Metrics.count("steal.successes").toDouble()/steals)}"
+        sendLog("$thisNode metrics: ${Metrics.report()}$perRound$stealRate")
     }
 
     private fun doWork(work: Job) = when (work.type()) {
@@ -270,7 +439,7 @@ class Node {
     /**
      * Calculates the loads of the owned nodes at the highest possible level in the hierarchy.
      */
-    private fun highestLevelChildrenLoads(): List<Double> {
+    private fun highestLevelChildrenLoads(): List<LoadInfo> {
         var averageLevelLoad = currentLoad
         val lastLevelLoads = mutableListOf(averageLevelLoad)
         for (i in levelLoads.size-1 downTo 0) {
@@ -279,29 +448,403 @@ class Node {
                 lastLevelLoads.add(it.value)
             }
             lastLevelLoads.add(averageLevelLoad)
-            averageLevelLoad = lastLevelLoads.average()
+            averageLevelLoad = LoadInfo.average(thisNode, lastLevelLoads)
         }
         return lastLevelLoads
     }
 
     /**
-     * Returns true if there is an imbalance, false otherwise.
+     * Sends the subtree's load to the parent every [Config.loadReportPeriodMillis], unless it's about the same as
+     * last time. Parents only act on notable differences anyways. Skipped reports are counted in load.suppressed.
      */
-    private fun checkImbalance(highestLevelChildrenLoads: List<Double>): Boolean {
-        if (lastBalanceOp.get() > System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(5)) {
-            //sendLog("Too soon since the last balancing operation")
-            return false
+    private fun reportLoad() {
+        val load = subtreeLoad ?: return
+        val now = System.currentTimeMillis()
+        if (now - lastLoadCheck < Config.loadReportPeriodMillis) {
+            return
+        }
+        lastLoadCheck = now
+        val reported = reportedLoad
+        if (reported != null && !load.differsFrom(reported, Config.loadReportThreshold)
+                && now - lastLoadReport < loadReportMaxSilenceMillis) {
+            Metrics.increment("load.suppressed")
+            return
+        }
+        reportedLoad = load
+        lastLoadReport = now
+        Metrics.increment("load.reports")
+        val parent = hierarchy.parent()
+        sendAsync(Message.create(load), parent.address(), parent.port())
+    }
+
+    /**
+     * The load to attach to a message going to the parent, if piggybacking. It counts as a report.
+     */
+    private fun piggybackedLoad(): LoadInfo? {
+        if (!Config.loadPiggyback) {
+            return null
+        }
+        val load = subtreeLoad ?: return null
+        reportedLoad = load
+        lastLoadReport = System.currentTimeMillis()
+        Metrics.increment("load.piggybacked")
+        return load
+    }
+
+    /**
+     * Lets the parent and the nodes this node owns know it's alive, every [Config.heartbeatMillis]. Whoever this
+     * node sends heartbeats to is who it expects them from.
+     */
+    private fun sendHeartbeats() {
+        val parent = hierarchy.parent()
+        val owned = mutableListOf<NodeInfo>()
+        hierarchy.bfsOnOwned { treeNode, _, _ ->
+            if (treeNode.node() != thisNode) {
+                owned.add(treeNode.node())
+            }
+        }
+        val neighbors = listOfNotNull(parent) + owned
+        failureDetector.watchOnly(neighbors)
+        neighborBacklogs.keys.retainAll(neighbors.toSet()) // <- Dead or moved elsewhere
+
+        val backlog = workers.backlog()
+        val heartbeat = parent?.let { Heartbeat.create(thisNode, it, backlog) }
+            ?: Heartbeat.createFromRoot(thisNode, owned, backlog) // <- Top level first
+        parent?.let { sendAsync(Message.create(heartbeat), it.address(), it.port()) }
+        owned.forEach { child ->
+            val message = if (Config.workStealing) {
+                // The child's siblings, this node included, then whoever's around this node
+                val siblings = owned.filter { it != child } + thisNode
+                Message.create(heartbeat.withNeighborhood(listOf(siblings) + neighborhood.take(stealLayers - 1)))
+            } else {
+                Message.create(heartbeat)
+            }
+            sendAsync(message, child.address(), child.port())
+        }
+    }
+
+    /**
+     * When this node's queue ran dry and some worker has nothing to do, asks a random node of its [neighborhood]
+     * for about half of its queue: a sibling first, then moving up the hierarchy a layer at a time if they had
+     * nothing to spare. Nobody else gets involved. Steal attempts, successes and latency are in the steal metrics.
+     */
+    private fun stealIfIdle() {
+        val now = System.currentTimeMillis()
+        if (now < nextStealMillis || workers.backlog() > 0 || !workers.hasIdleWorkers()) {
+            return
+        }
+        for (layer in neighborhood) {
+            if (layer.isEmpty()) {
+                continue
+            }
+            val victim = layer.random()
+            Metrics.increment("steal.attempts")
+            val start = System.nanoTime()
+            val jobs = send(Message.createSteal(thisNode), victim.address(), victim.port())?.jobs()
+            Metrics.record("steal.latency", System.nanoTime() - start)
+            if (!jobs.isNullOrEmpty()) {
+                sendLog(LogLevel.DEBUG) { "$thisNode stole ${jobs.size} jobs from $victim" }
+                Metrics.increment("steal.successes")
+                Metrics.increment("steal.jobs", jobs.size.toLong())
+                workers.submitAll(jobs)
+                return
+            }
+        }
+        nextStealMillis = now + stealBackoffMillis
+    }
+
+    /**
+     * Balances by diffusion, every [Config.diffusionPeriodMillis]: hands part of the backlog over to those of the
+     * parent and children that have less of it per worker, going by their last heartbeats. There are no rounds and
+     * nobody stops for it, imbalances spread a hop at a time and even out as they go.
+     *
+     * Splitting the difference evenly between us and every lighter neighbor would give each of them
+     * difference/(neighbors + 1); they get [Config.diffusionRate] of that, so pushes coming from both sides of a
+     * node don't overshoot, and we never give away more than we have. Jobs that don't fit stay, and jobs that
+     * don't make it come back to our queue.
+     */
+    private fun diffuse() {
+        val now = System.currentTimeMillis()
+        if (now - lastDiffusion < Config.diffusionPeriodMillis) {
+            return
+        }
+        lastDiffusion = now
+        val backlog = workers.backlog()
+        val lighter = neighborBacklogs.filterValues { it < backlog }
+        // Assuming neighbors have as many workers as we do, backlogs are per worker
+        lighter.forEach { (neighbor, neighborBacklog) ->
+            val share = Config.diffusionRate*(backlog - neighborBacklog)/(lighter.size + 1)
+            val jobs = workers.takeWeight((share*Config.nodeWorkers).toLong(), overshoot = false)
+            if (jobs.isEmpty()) {
+                return@forEach
+            }
+            val weight = jobs.fold(0L) { weight, job -> weight + job.weight() }
+            neighborBacklogs[neighbor] = neighborBacklog + weight.toDouble()/Config.nodeWorkers
+            Metrics.increment("diffusion.pushes")
+            Metrics.increment("diffusion.jobs", jobs.size.toLong())
+            sendLog(LogLevel.DEBUG) { "$thisNode diffusing ${jobs.size} jobs to $neighbor" }
+            transferExecutor.submit {
+                try {
+                    ConnectionPool.request(Peer(neighbor), Message.create(jobs))
+                } catch (iox: IOException) {
+                    sendLog("$thisNode couldn't diffuse jobs to $neighbor, keeping them: $iox")
+                    workers.submitAll(jobs)
+                }
+            }
+        }
+    }
+
+    /**
+     * Patches up the hierarchy around the neighbors the [failureDetector] gave up on. Dead children are dropped,
+     * their orphans will come asking where to go, see [chooseHeir]. A dead parent means asking its parent instead,
+     * see [findNewParent], or electing a new root if it was the root; that goes on every control loop iteration
+     * until somebody takes this node in.
+     *
+     * Whatever was queued at a dead node is lost, and rounds that were waiting on it carry on without it once their
+     * deadlines pass.
+     */
+    private fun checkFailures() {
+        val suspects = failureDetector.suspects(Config.phiThreshold)
+        if (suspects.isEmpty()) {
+            return
+        }
+        val parent = hierarchy.parent()
+        synchronized(balancingLock) {
+            suspects.filter { it != parent }.forEach { childDied(it) }
+        }
+        // Not under the lock, asking around can take a while and rounds shouldn't wait on it
+        if (parent in suspects) {
+            findNewParent(parent)
+        }
+    }
+
+    /**
+     * Drops a dead child, remembering where it was for its orphans. Call holding the [balancingLock].
+     */
+    private fun childDied(child: NodeInfo) {
+        val level = synchronized(this) { nodeLevelMap[child] } ?: return
+        sendLog("$thisNode declared $child dead, phi ${failureDetector.phi(child)}")
+        Metrics.increment("failure.declared")
+        failureDetector.forget(child)
+        deadChildren[child] = DeadChild(level)
+        editOwnership { levels -> levels[level].remove(child) }
+    }
+
+    /**
+     * Asks the dead [parent]'s parent where to go now. The first of its orphans to ask takes its place, the rest
+     * go under that one.
+     */
+    private fun findNewParent(parent: NodeInfo) {
+        val grandparent = grandparent
+        if (grandparent == null) {
+            electRoot(parent)
+            return
+        }
+        val request = Message.create(Adoption.create(parent, thisNode, null))
+        val heir = send(request, grandparent.address(), grandparent.port())?.adoption()?.heir() ?: return
+
+        if (heir == thisNode) {
+            sendLog("$thisNode takes the place of $parent, dead, under $grandparent")
+            moveUnder(parent, grandparent, tookOver = true)
+        } else {
+            val join = Message.create(Adoption.create(parent, thisNode, heir))
+            send(join, heir.address(), heir.port())?.adoption()?.heir() ?: return
+            sendLog("$thisNode moves under $heir, in place of $parent, dead")
+            moveUnder(parent, heir)
+        }
+    }
+
+    /**
+     * The root died, the first of its successors still around takes over, bully style. Successors ranked higher get
+     * asked to take this node in: the ones that can't be reached are skipped, and if one can but isn't the root yet,
+     * this node asks again next time. If nobody ranked higher is around, this node is the new root, and the others
+     * go under it as they come asking.
+     */
+    private fun electRoot(root: NodeInfo) {
+        val successors = successors
+        if (successors.isEmpty()) {
+            sendLog(LogLevel.DEBUG) { "$thisNode lost $root, nobody to ask for a new parent yet" }
+            return
+        }
+        for (candidate in successors) {
+            if (candidate == thisNode) {
+                sendLog("$thisNode takes over from $root, dead, as the root")
+                Metrics.increment("failure.rootFailovers")
+                moveUnder(root, null, tookOver = true)
+                return
+            }
+            val join = Message.create(Adoption.create(root, thisNode, candidate))
+            val answer = send(join, candidate.address(), candidate.port()) ?: continue // <- Gone too
+            if (answer.adoption()?.heir() != null) {
+                sendLog("$thisNode moves under $candidate, the new root")
+                moveUnder(root, candidate)
+            }
+            return
+        }
+    }
+
+    /**
+     * Moves this node under [parent], null for the root, in place of [deadParent]. Takes in the dead node's other
+     * orphans from now on if this node [tookOver] its place. Only this part holds the [balancingLock]; if a new
+     * hierarchy came in while we were asking around, that one wins and nothing happens.
+     */
+    private fun moveUnder(deadParent: NodeInfo, parent: NodeInfo?, tookOver: Boolean = false) {
+        synchronized(balancingLock) {
+            if (hierarchy.parent() != deadParent) {
+                sendLog("$thisNode isn't under $deadParent anymore, staying where it is")
+                return
+            }
+            if (tookOver) {
+                adoptingFor = deadParent
+                adoptedLevel = false
+            }
+            Metrics.increment("failure.repairs")
+            failureDetector.forget(deadParent)
+            parent?.let { failureDetector.watch(it) }
+            grandparent = null // <- Until the new parent's heartbeat says
+            successors = listOf()
+            neighborhood = listOf()
+            reportedLoad = null // <- The new parent hasn't heard it
+            editOwnership(parent) {}
+        }
+    }
+
+    /**
+     * Answers an orphan of a dead child with who takes the child's place, the orphan itself if it's the first to
+     * ask. Null if this node doesn't think the child is dead (yet).
+     */
+    private fun chooseHeir(adoption: Adoption): Adoption? = synchronized(balancingLock) {
+        val dead = adoption.dead()
+        if (dead !in deadChildren) {
+            val ownsIt = synchronized(this) { nodeLevelMap.containsKey(dead) }
+            if (!ownsIt || failureDetector.phi(dead) <= Config.phiThreshold) {
+                return null
+            }
+            childDied(dead) // <- The orphan noticed first
+        }
+
+        val deadChild = deadChildren.getValue(dead)
+        val heir = deadChild.heir ?: adoption.orphan().also { heir ->
+            sendLog("$thisNode puts $heir in place of $dead, dead")
+            deadChild.heir = heir
+            failureDetector.watch(heir)
+            editOwnership { levels -> levels[deadChild.level].add(heir) }
+        }
+        return Adoption.create(dead, adoption.orphan(), heir)
+    }
+
+    /**
+     * Takes in an orphan of the dead node this node took the place of, or took over from as the root. They all go
+     * in a level of their own above the ones this node already had. Answers without an heir if it didn't, so the
+     * orphan can tell this node is still around.
+     */
+    private fun takeIn(adoption: Adoption): Adoption = synchronized(balancingLock) {
+        if (adoption.dead() != adoptingFor) {
+            return Adoption.create(adoption.dead(), adoption.orphan(), null)
+        }
+        val orphan = adoption.orphan()
+        failureDetector.watch(orphan)
+        editOwnership { levels ->
+            if (!adoptedLevel) {
+                levels.add(0, mutableListOf())
+                adoptedLevel = true
+            }
+            if (orphan !in levels[0]) {
+                levels[0].add(orphan)
+            }
+        }
+        return adoption
+    }
+
+    /**
+     * Rebuilds this node's part of the hierarchy, under [parent], after an [edit] to the nodes it owns at every
+     * level. Levels keep their place even if they end up empty, dead children are remembered by level. Loads
+     * already known are kept.
+     */
+    private fun editOwnership(parent: NodeInfo? = hierarchy.parent(), edit: (MutableList<MutableList<NodeInfo>>) -> Unit) {
+        val levels = HierarchyBuilder.ownerships(hierarchy).getValue(thisNode).levels
+            .mapTo(mutableListOf()) { it.toMutableList() }
+        edit(levels)
+        val hierarchy = HierarchyBuilder.treeOf(HierarchyBuilder.Ownership(thisNode, parent, levels))
+
+        val knownLoads = synchronized(this) { levelLoads.flatMap { it.values }.associateBy { it.node() } }
+        buildInternalMappings(hierarchy)
+        synchronized(this) {
+            levelLoads.forEach { loads ->
+                loads.keys.forEach { node -> knownLoads[node]?.let { loads[node] = it } }
+            }
+        }
+        this.hierarchy = hierarchy
+        sendLog(LogLevel.DEBUG) { "$thisNode patched its hierarchy: $hierarchy" }
+    }
+
+    /**
+     * Returns true if a round is worth it, false otherwise.
+     *
+     * Only queued jobs get moved around, so it comes down to how far apart the subtrees' backlogs are; busy fractions
+     * can't tell how much there is to move. The [trigger] weighs that against what rounds have been costing.
+     */
+    private fun checkImbalance(highestLevelChildrenLoads: List<LoadInfo>): Boolean {
+        val decision = trigger.evaluate(highestLevelChildrenLoads.map { it.backlog() }, workers.nanosPerWeight())
+        sendLog(LogLevel.DEBUG) {
+            "Checking balance: $decision, gain ${"%.0f".format(trigger.gainMillis)} ms, " +
+                    "round cost ${"%.0f".format(trigger.roundCostMillis)} ms, $highestLevelChildrenLoads"
+        }
+        return decision == BalancingTrigger.Decision.FIRE
+    }
+
+    /**
+     * Gets into balancing mode for [round], keeping track of when and of the inter host bytes sent so far.
+     */
+    private fun startBalancing(round: Long) {
+        collectingRound = round
+        askedNodes = listOf()
+        balancingSince.set(System.currentTimeMillis())
+        balancingStartBytes.set(Metrics.count("wire.interHostBytesOut"))
+        balancing.set(true)
+    }
+
+    /**
+     * Gets out of balancing mode, counting what this node sent to other hosts in the meantime in
+     * balance.interHostBytes.
+     */
+    private fun stopBalancing() {
+        if (balancing.getAndSet(false)) {
+            Metrics.increment("balance.rounds")
+            Metrics.increment("balance.interHostBytes", Metrics.count("wire.interHostBytesOut") - balancingStartBytes.get())
         }
-        val averageLoad = highestLevelChildrenLoads.average()
-        sendLog("Checking balance: $averageLoad, $highestLevelChildrenLoads")
-        for (load in highestLevelChildrenLoads) {
-            if (abs(load - averageLoad) > imbalanceThreshold) {
-                return true
+    }
+
+    /**
+     * Waits on a collector until [deadlineMillis], then goes on with whatever made it, letting the log know who
+     * didn't. Children further down the tree get less time than their parents, so partial results make it up in
+     * time, see [collectDeadline].
+     */
+    private fun <V> awaitCollector(
+        collector: MappingCollector<NodeInfo, V>,
+        expected: Collection<NodeInfo>,
+        deadlineMillis: Long
+    ): Map<NodeInfo, V> {
+
+        val collected = collector.awaitAndGet(max(deadlineMillis - System.currentTimeMillis(), 0L))
+        val missing = expected.filter { it != thisNode && !collected.containsKey(it) }
+        if (missing.isNotEmpty()) {
+            Metrics.increment("balance.collectTimeouts", missing.size.toLong())
+            sendLog("$thisNode got nothing from $missing in time, balancing without them")
+            // No result is coming their way, they'd sit in balancing mode until they gave up on it
+            missing.forEach { node ->
+                sendAsync(Message.createRoundOver(collectingRound), node.address(), node.port())
             }
         }
-        return false
+        return collected
     }
 
+    /**
+     * When to stop waiting on children collecting [levelsBelow] levels of the hierarchy under them, give or take.
+     */
+    private fun collectDeadline(startMillis: Long, levelsBelow: Int) =
+        startMillis + Config.collectTimeoutMillis*(levelsBelow + 1)
+
     /**
      * Collects this hierarchy's jobs. TODO here
      */
@@ -309,9 +852,7 @@ class Node {
         sendLog("Collecting Job Infos")
         if (hierarchy.isLeaf) {
             sendLog("$thisNode is leaf, shortcutting.")
-            val jerbs = synchronized(this) {
-                queue.map { it.getInfo(thisNode) }
-            }
+            val jerbs = takeSnapshot()
             return mapOf(Pair(thisNode, jerbs))
         }
 
@@ -319,45 +860,55 @@ class Node {
         // Cutting corners here, I know I'm going to dev hell
         // Anywho, just need to set up the collectors before I request for thread safety, as I want the
         // operation to be asynchronous for speed. <- Just for reference, Amy, this is what I'm into, parallelization
+        val start = System.currentTimeMillis()
         val jobCollectors = mutableListOf<MappingCollector<NodeInfo, List<JobInfo>>>()
         val jobNodeMapping = mutableListOf<MutableMap<JobInfo, NodeInfo>>()
+        val expectedNodes = mutableListOf<List<NodeInfo>>()
         var tempHierarchy = this.hierarchy
         while (!tempHierarchy.isLeaf) {
             jobCollectors.add(MappingCollector(tempHierarchy.children().count()))
             jobNodeMapping.add(mutableMapOf())
+            expectedNodes.add(tempHierarchy.children().map { it.node() })
             tempHierarchy = tempHierarchy.children()[0]
         }
         this.jobCollectors = jobCollectors.toList()
         this.jobNodeMapping = jobNodeMapping.toList()
+        this.collectedJobs = MutableList(jobCollectors.size) { mapOf<NodeInfo, List<JobInfo>>() }
 
 
         // Request to all hierarchies this node owns
+        val askedNodes = mutableListOf<NodeInfo>()
         this.hierarchy.bfsOnOwned { treeNode, _, _ ->
             val node = treeNode.node()
             if (node != thisNode) { // We don't request ourselves, that'd be silly :)
                 sendLog("Requesting to $node")
-                sendAsync(Message.createCollectJobs(), node.address(), node.port())
+                askedNodes.add(node)
+                val request = Message.createCollectJobs(collectingRound)
+                sendAsync(request, node.address(), node.port()) // <- Only once, see collectAttempts
             }
         }
 
-        var myJobs = synchronized(this) {
-            queue.map { job -> job.getInfo(thisNode) }
-        }
+        this.askedNodes = askedNodes
+        var myJobs = takeSnapshot()
         // The top index is a special case, this function does not merge those
         for (i in this.jobCollectors.indices.minus(0).reversed()) {
             this.jobCollectors[i].add(thisNode, myJobs)
-            val nodesToJobs = this.jobCollectors[i].awaitAndGet()
+            val deadline = collectDeadline(start, this.jobCollectors.size - 1 - i)
+            val nodesToJobs = awaitCollector(this.jobCollectors[i], expectedNodes[i], deadline)
+            this.collectedJobs[i] = nodesToJobs
             nodesToJobs.forEach { nodeToJobs ->
                 nodeToJobs.value.forEach { job ->
                     this.jobNodeMapping[i][job] = nodeToJobs.key
                 }
             }
-            myJobs = this.jobCollectors[i].awaitAndGet().collect()
+            myJobs = nodesToJobs.collect()
         }
 
         // Not DRY >:, but also ¯\_(ツ)_/¯
         this.jobCollectors[0].add(thisNode, myJobs)
-        val nodesToJobs = this.jobCollectors[0].awaitAndGet()
+        val deadline = collectDeadline(start, this.jobCollectors.size - 1)
+        val nodesToJobs = awaitCollector(this.jobCollectors[0], expectedNodes[0], deadline)
+        this.collectedJobs[0] = nodesToJobs
         nodesToJobs.forEach { nodeToJobs ->
             nodeToJobs.value.forEach { job ->
                 this.jobNodeMapping[0][job] = nodeToJobs.key
@@ -366,13 +917,147 @@ class Node {
         return nodesToJobs
     }
 
+    /**
+     * Collects a summary of the queued jobs of every node in this hierarchy, this node's included, by the child
+     * whose subtree they're in.
+     */
+    private fun collectSummaries(): Map<NodeInfo, List<JobSummary>> {
+        val snapshot = workers.snapshot()
+        snapshotVersion = snapshot.version
+        val summaries = mutableMapOf(thisNode to listOf(JobSummary.of(thisNode, snapshot.jobs)))
+        if (hierarchy.isLeaf) {
+            return summaries
+        }
+
+        // Every subtree we own answers with the summaries of all of its nodes, no need to go level by level
+        val owned = mutableListOf<NodeInfo>()
+        hierarchy.bfsOnOwned { treeNode, _, _ ->
+            if (treeNode.node() != thisNode) {
+                owned.add(treeNode.node())
+            }
+        }
+        val start = System.currentTimeMillis()
+        summaryCollector = MappingCollector(owned.size)
+        askedNodes = owned
+        owned.forEach { node ->
+            val request = Message.createCollectJobs(collectingRound)
+            sendAsync(request, node.address(), node.port()) // <- Only once, see collectAttempts
+        }
+        var levels = 0
+        var tempHierarchy = hierarchy
+        while (!tempHierarchy.isLeaf) {
+            levels++
+            tempHierarchy = tempHierarchy.children()[0]
+        }
+        val deadline = collectDeadline(start, levels - 1)
+        summaries.putAll(awaitCollector(summaryCollector, owned, deadline))
+        return summaries
+    }
+
+    /**
+     * Hands over this node's share of a summary based balancing plan. Jobs come out of the snapshot taken when
+     * collecting, heaviest first, as long as they don't leave the recipient further off than it was: a job can
+     * go over what's left to send by at most as much. Recipients get their jobs all at once, up to the fan-out.
+     */
+    private fun executeBalancingPlan(plan: BalancingPlan) {
+        val transfers = plan.weightTransfers()
+        if (transfers.isNotEmpty()) {
+            val jobs = workers.snapshot(snapshotVersion).jobs.sortedByDescending { it.weight() }
+            val picked = BooleanArray(jobs.size)
+            val pushes = mutableListOf<Pair<NodeInfo, Future<*>>>()
+            for (transfer in transfers) {
+                var remaining = transfer.weight()
+                val jobIdSet = mutableSetOf<Int>()
+                for (i in jobs.indices) {
+                    if (remaining <= 0) {
+                        break
+                    }
+                    if (!picked[i] && jobs[i].weight() <= 2*remaining) {
+                        picked[i] = true
+                        jobIdSet.add(jobs[i].id())
+                        remaining -= jobs[i].weight()
+                    }
+                }
+
+                val moved = workers.removeJobs(jobIdSet, snapshotVersion)
+                val recipient = transfer.recipient()
+                sendLog(LogLevel.DEBUG) { "NODE $thisNode sending ${moved.size} jobs to $recipient" }
+                if (moved.isNotEmpty()) {
+                    pushes.add(recipient to transferExecutor.submit {
+                        // The recipient queues them before answering
+                        ConnectionPool.request(Peer(recipient), Message.create(moved))
+                        recordTransferLatency(plan.decidedAtMillis())
+                    })
+                }
+            }
+            awaitTransfers(pushes)
+        }
+        stopBalancing()
+    }
+
+    /**
+     * Waits for job fetches or pushes to be done, giving every peer [Config.transferTimeoutMillis] counting from
+     * when we start waiting on it. Whatever's still going afterwards keeps going, jobs are queued whenever they
+     * make it, the round just doesn't wait for them.
+     */
+    private fun awaitTransfers(transfers: List<Pair<NodeInfo, Future<*>>>) {
+        transfers.forEach { (peer, transfer) ->
+            try {
+                transfer.get(Config.transferTimeoutMillis, TimeUnit.MILLISECONDS)
+            } catch (tx: TimeoutException) {
+                Metrics.increment("balance.transferTimeouts")
+                sendLog("$thisNode gave up waiting on $peer for jobs")
+            } catch (x: ExecutionException) {
+                sendLog("$thisNode couldn't transfer jobs with $peer: ${x.cause}")
+            }
+        }
+    }
+
+    /**
+     * Time between an operation's transfers being decided and jobs landing in their new queue. Clocks are
+     * assumed to be in sync, which they are when nodes share a machine, and close enough otherwise.
+     */
+    private fun recordTransferLatency(decidedAtMillis: Long) {
+        if (decidedAtMillis != 0L) {
+            val latencyMillis = max(System.currentTimeMillis() - decidedAtMillis, 0L)
+            Metrics.record("balance.transferLatency", TimeUnit.MILLISECONDS.toNanos(latencyMillis))
+        }
+    }
+
+    /**
+     * Snapshots the queued jobs for a balancing operation. Jobs submitted from here on won't be handed over.
+     */
+    private fun takeSnapshot(): List<JobInfo> {
+        val snapshot = workers.snapshot()
+        snapshotVersion = snapshot.version
+        return snapshot.jobs.map { it.getInfo(thisNode) }
+    }
+
+    /**
+     * Figures out the transfers that balance out the given containers, using whichever algorithm [mode] says.
+     * The time it takes is recorded in the balance.decisionTime timer.
+     */
+    fun loadBalance(
+        transferContainers: LinkedList<TransferContainer>,
+        mode: BalancingMode = BalancingMode.configured
+    ): MutableList<JobTransfer> {
+
+        val start = System.nanoTime()
+        val transfers = when (mode) {
+            BalancingMode.GREEDY -> greedyLoadBalance(transferContainers)
+            BalancingMode.PARTITION -> PartitionBalancer.balance(transferContainers)
+        }
+        Metrics.record("balance.decisionTime", System.nanoTime() - start)
+        return transfers
+    }
+
     /**
      * Load balance. This is where the secret sauce is. Most of it anywho.
      */
-    fun loadBalance(transferContainers: LinkedList<TransferContainer>): MutableList<JobTransfer> {
+    private fun greedyLoadBalance(transferContainers: LinkedList<TransferContainer>): MutableList<JobTransfer> {
         // Create the transfer containers and calculate average weight
         val averageWeight = transferContainers.averageWeight()
-        sendLog("Average weight: $averageWeight")
+        sendLog(LogLevel.DEBUG) { "Average weight: $averageWeight" }
 
         // Sort; we're looking to transfer work from the busiest nodes to the idlest nodes
         transferContainers.sort()
@@ -397,16 +1082,18 @@ class Node {
         while (transfersAvailable(transferContainers, averageWeight)) {
             val donorContainer = transferContainers.first // Pick the busiest processor
             while (donorContainer.weight() > averageWeight) {
-                sendLog("Donor Weight: ${donorContainer.weight()}")
+                sendLog(LogLevel.DEBUG) { "Donor Weight: ${donorContainer.weight()}" }
                 val recipientContainer = transferContainers.last
+                if (recipientContainer === donorContainer) {
+                    break // Every recipient got its fill, the donor would be donating to itself
+                }
                 val recipientSlack = averageWeight-recipientContainer.weight()
-                sendLog("Recipient's Slack: $recipientSlack")
+                sendLog(LogLevel.DEBUG) { "Recipient's Slack: $recipientSlack" }
                 val job = donorContainer.getJobJustUnder(recipientSlack)
-                sendLog("Transferring job $job")
+                sendLog(LogLevel.DEBUG) { "Transferring job $job" }
                 if (job == null) {
                     // Something went wrong, log something
-                    doneTransferContainers.add(donorContainer)
-                    transferContainers.removeFirst() // But for now just move over to done
+                    break // But for now just move over to done, right below
                 } else {
                     // Assign the job to the recipient, record the transfer, and check whether the recipient is done
                     recipientContainer.assignJob(job)
@@ -454,122 +1141,179 @@ class Node {
             socket.close()
         }
 
-        message.doWork()?.let { request ->
-            //sendLog("$thisNode got a work request: $request")
-            synchronized(this) {
-                if (!balancing.get()) {
-                    queue.add(request)
-                }
+        message.hierarchyShares()?.let {
+            socket.close()
+            val ownerships = HierarchyBuilder.ownershipsOf(message)
+            val hierarchy = HierarchyBuilder.treeOf(ownerships[0]) // <- Ours comes first
+            sendLog(LogLevel.DEBUG) { "$thisNode just got its hierarchy: $hierarchy" }
+            buildInternalMappings(hierarchy)
+            communicateShares(hierarchy, ownerships.associateBy { it.node })
+            this.hierarchy = hierarchy
+            hierarchySet.set(true)
+        }
+
+        message.heartbeat()?.let { heartbeat ->
+            socket.close()
+            failureDetector.heartbeat(heartbeat.sender())
+            neighborBacklogs[heartbeat.sender()] = heartbeat.backlog()
+            if (heartbeat.sender() == currentParent()) { // <- May beat us to our own hierarchy
+                grandparent = heartbeat.parent()
+                successors = heartbeat.successors() ?: listOf()
+                neighborhood = heartbeat.neighborhood() ?: listOf()
             }
-            synchronized(workLock) {
-                workLock.notify()
+        }
+
+        message.adoption()?.let { adoption ->
+            val answer = if (adoption.heir() == null) chooseHeir(adoption) else takeIn(adoption)
+            if (answer != null) {
+                socket.send(Message.create(answer))
+            } else {
+                socket.close() // <- Not now, they'll ask again
             }
+        }
+
+        message.steal()?.let { thief ->
+            // Jobs could be spoken for by the round, if there's one going
+            val jobs = if (balancing.get()) listOf() else workers.stealHalf()
+            sendLog(LogLevel.DEBUG) { "$thisNode gives $thief ${jobs.size} jobs" }
+            socket.send(Message.create(jobs))
+        }
+
+        message.doWork()?.let { request ->
+            //sendLog("$thisNode got a work request: $request")
+            workers.submit(request) // <- Balancing or not, it's the live queue's
             socket.close()
         }
 
         message.loadInfo()?.let { update ->
-            sendLog("$thisNode got a load update: $update")
+            sendLog(LogLevel.DEBUG) { "$thisNode got a load update: $update" }
             val node = update.node()
+            failureDetector.heartbeat(node) // <- As good as one
             synchronized(this) {
                 nodeLevelMap[node]?.let { level ->
-                    levelLoads[level][node] = update.load()
+                    levelLoads[level][node] = update
                 } // ?: throw(something went wrong)
             }
         }
 
-        if (message.collectJobs()) {
+        message.collectJobs()?.let { round ->
             sendLog("$thisNode asked to collect jobs")
             // This operation is asynchronous and could take time, free up the socket and I'll open a connection later
             socket.close()
-            balancing.set(true)
 
-            // This request will only come from the parent
-            send(
-                Message.create(JobInfoList.create(thisNode, collectJobInfos().collect())),
-                hierarchy.parent().address(),
-                hierarchy.parent().port()
-            )
+            // This request will only come from the parent. If we're in the middle of balancing our own subtree,
+            // finish that first; it's part of our parent's anyways
+            val reply = synchronized(balancingLock) {
+                if (round == skippedRound) {
+                    sendLog("$thisNode was told round $round was over before it got to it")
+                    return@let
+                }
+                startBalancing(round)
+                trigger.roundOver()
+                if (Config.summaryCollection) {
+                    val summaries = collectSummaries().values.flatten()
+                    Message.create(JobSummaryList.create(thisNode, summaries, round), piggybackedLoad())
+                } else {
+                    Message.create(JobInfoList.create(thisNode, collectJobInfos().collect(), round), piggybackedLoad())
+                }
+            }
+            send(reply, hierarchy.parent().address(), hierarchy.parent().port(), collectAttempts)
+        }
+
+        message.jobSummaryList()?.let {
+            sendLog(LogLevel.DEBUG) { "$thisNode just got a job summary list: $it" }
+            val owned = synchronized(this) { nodeLevelMap.containsKey(it.sender()) }
+            if (it.round() != collectingRound || !owned) {
+                sendLog("$thisNode dropped a stale job summary list from ${it.sender()}")
+            } else {
+                summaryCollector.add(it.sender(), it.summaries())
+            }
+        }
+
+        // We took too long to collect for our parent's round, so did whoever we asked as far as it's concerned
+        message.roundOver()?.let { round ->
+            // Might have to wait on our own collection to be done
+            socket.close()
+            synchronized(balancingLock) {
+                if (round != collectingRound || !balancing.get()) {
+                    skippedRound = round // <- Its collect request could still be on its way
+                    return@let
+                }
+                sendLog("$thisNode was left out of round $round, so are $askedNodes")
+                askedNodes.forEach { node ->
+                    sendAsync(Message.createRoundOver(round), node.address(), node.port())
+                }
+                stopBalancing()
+            }
+        }
+
+        message.balancingPlan()?.let { plan ->
+            sendLog(LogLevel.DEBUG) { "$thisNode got its share of the plan: $plan" }
+            // Sending jobs around takes a while, free up the socket
+            socket.close()
+            executeBalancingPlan(plan)
+        }
+
+        // Jobs some donor is handing over
+        message.jobs()?.let { jobs ->
+            workers.submitAll(jobs)
+            socket.close()
         }
 
         message.jobInfoList()?.let {
-            sendLog("$thisNode just got a job info list: $it")
-            jobCollectors[nodeLevelMap[it.sender()] ?: error("something went south")].add(it.sender(), it.jobInfoList())
+            sendLog(LogLevel.DEBUG) { "$thisNode just got a job info list: $it" }
+            // Replies that took too long belong to a round that's over, and the sender could've been moved since
+            val level = synchronized(this) { nodeLevelMap[it.sender()] }
+            val collector = if (it.round() != collectingRound || level == null) null else jobCollectors.getOrNull(level)
+            if (collector == null) {
+                sendLog("$thisNode dropped a stale job info list from ${it.sender()}")
+            } else {
+                collector.add(it.sender(), it.jobInfoList())
+            }
         }
 
         // This message is only received at the top level, so we can work backwards down the hierarchy
         message.loadBalancingResult()?.let {
-            sendLog("$thisNode got result: $it")
+            sendLog(LogLevel.DEBUG) { "$thisNode got result: $it" }
+            // Passing it on and fetching jobs takes a while, free up the socket
+            socket.close()
             if (hierarchy.isLeaf) {
                 // Find me jobs and get oot of balancing mode
-                fetchMyJobs(it.jobTransfers())
+                fetchMyJobs(it.jobTransfers(), it.decidedAtMillis())
             } else {
-                propagatedLoadBalancingOperation(message.loadBalancingResult().jobTransfers(), 0)
+                propagatedLoadBalancingOperation(it.jobTransfers(), 0, it.decidedAtMillis())
             }
         }
 
         message.jobTransfer()?.let { transferRequest ->
-            sendLog("$thisNode just got a transfer request $transferRequest")
+            sendLog(LogLevel.DEBUG) { "$thisNode just got a transfer request $transferRequest" }
             val jobIdSet = mutableSetOf<Int>()
             transferRequest.forEach {
                 jobIdSet.add(it.job().jobId())
             }
 
-            val jobs = synchronized(this) {
-                val jobs = mutableListOf<Job>()
-                queue.forEach {
-                    if (jobIdSet.contains(it.id())) {
-                        jobs.add(it)
-                    }
-                }
-                queue.removeAll(jobs) // I don't care about being efficient at 3:51a on a Sunday
-                jobs
-            }
+            // Jobs that started or finished since the snapshot just don't make it
+            val jobs = workers.removeJobs(jobIdSet, snapshotVersion)
             socket.send(Message.create(jobs))
         }
     }
 
     fun buildHierarchyOp(request: BuildHierarchy): TreeNode {
         val hierarchy = buildHierarchy(request)
-        sendLog("$thisNode built the hierarchy: $hierarchy")
+        sendLog("$thisNode built the hierarchy, fan-out per level ${hierarchy.fanOuts()}: $hierarchy")
         buildInternalMappings(hierarchy)
         // Let other nodes know
-        communicateHierarchy(hierarchy)
+        if (Config.compactHierarchy) {
+            communicateShares(hierarchy, HierarchyBuilder.ownerships(hierarchy))
+        } else {
+            communicateHierarchy(hierarchy)
+        }
 
         return hierarchy
     }
 
-    /**
-     * A bit haphazard IMO. Could be better, but works.
-     */
-    private fun buildHierarchy(request: BuildHierarchy): TreeNode {
-        // Create a list of leaves
-        val leaves = LinkedList<TreeNode>()
-        request.nodes().forEach {
-            leaves.add(TreeNode.create(it))
-        }
-
-        // First leaf will be the root
-        val root = leaves.remove()
-        val parents = LinkedList<TreeNode>()
-        parents.add(root)
-
-        val extraChildren = request.branchingFactor()-1
-
-        while (leaves.isNotEmpty()) {
-            val parent = parents.remove()
-            parent.children().add(TreeNode.create(parent.node()))
-            parents.add(parent.children()[0]) // We can probably be smarter about this, comes a point when we don't need to add more
-            repeat(min(extraChildren, leaves.size)) {
-                val nextLeaf = leaves.remove().assignParent(parent.node())
-                // Exploiting the fact that a member of an autovalue class is not mutable
-                // Really shouldn't be doing this, but who cares
-                parent.children().add(nextLeaf)
-                parents.add(nextLeaf)
-            }
-        }
-
-        return root
-    }
+    private fun buildHierarchy(request: BuildHierarchy) =
+        HierarchyBuilder.build(request.nodes(), request.branchingFactor())
 
     /**
      * Looks much like [communicateHierarchy], just want to populate indices and mappings before communicating
@@ -577,7 +1321,7 @@ class Node {
      */
     private fun buildInternalMappings(hierarchy: TreeNode) {
         val nodeLevelMap = mutableMapOf<NodeInfo, Int>()
-        val levelLoads = mutableListOf<MutableMap<NodeInfo, Double>>()
+        val levelLoads = mutableListOf<MutableMap<NodeInfo, LoadInfo>>()
         hierarchy.bfsOnOwned { treeNode, level, levelChanged ->
             if (levelChanged) {
                 levelLoads.add(mutableMapOf())
@@ -585,7 +1329,7 @@ class Node {
             val node = treeNode.node()
             if (node != thisNode) {
                 nodeLevelMap[node] = level
-                levelLoads[level][node] = 0.0
+                levelLoads[level][node] = LoadInfo.create(node, 0.0)
             }
         }
         synchronized(this) {
@@ -607,12 +1351,26 @@ class Node {
         }
     }
 
+    /**
+     * The compact take on [communicateHierarchy]: every node this node is in charge of gets the shares of its own
+     * subtree only, and passes them on the same way.
+     */
+    private fun communicateShares(hierarchy: TreeNode, ownerships: Map<NodeInfo, HierarchyBuilder.Ownership>) {
+        hierarchy.bfsOnOwned { treeNode, _, _ ->
+            val node = treeNode.node()
+            if (node != thisNode) {
+                sendLog("$thisNode is sending hierarchy to $node")
+                sendAsync(HierarchyBuilder.sharesMessage(node, ownerships), node.address(), node.port())
+            }
+        }
+    }
+
     /**
      * As it propagates down the hierarchy.
      */
-    private fun propagatedLoadBalancingOperation(transfers: List<JobTransfer>, round: Int) {
+    private fun propagatedLoadBalancingOperation(transfers: List<JobTransfer>, round: Int, decidedAtMillis: Long) {
         if (round == jobCollectors.size) {
-            fetchMyJobs(transfers)
+            fetchMyJobs(transfers, decidedAtMillis)
             return
         }
 
@@ -643,7 +1401,7 @@ class Node {
 
         // Original jobs per node
         //sendLog("$thisNode, $round collector's count: ${jobCollectors[round].count()}")
-        val jobsPerNodeAtCollectTime = jobCollectors[round].awaitAndGet() // <- the condition has already been met, there is no waiting
+        val jobsPerNodeAtCollectTime = collectedJobs[round] // <- Whoever made it in time
         //sendLog("$thisNode, $round jpn at ct: $jobsPerNodeAtCollectTime")
         // New map we're constructing
         val jobsPerChildPostOutbound = mutableMapOf<NodeInfo, MutableList<JobInfo>>()
@@ -724,52 +1482,47 @@ class Node {
         transfersPerNode.forEach { (node, transfers) ->
             //sendLog("$thisNode, $round transfers for $node: $transfers")
             if (node != thisNode) {
-                sendAsync(Message.create(LoadBalancingResult.create(transfers)), node.address(), node.port())
+                val result = LoadBalancingResult.create(transfers, decidedAtMillis)
+                sendAsync(Message.create(result), node.address(), node.port())
             }
         }
-        propagatedLoadBalancingOperation(transfersPerNode[thisNode]!!, round+1)
+        propagatedLoadBalancingOperation(transfersPerNode[thisNode]!!, round+1, decidedAtMillis)
     }
 
-    private fun fetchMyJobs(transfers: List<JobTransfer>) {
-        sendLog("NODE $thisNode IS FETCHING: $transfers")
-        if (transfers.isEmpty()) {
-            balancing.set(false)
-        } else {
-            val requestMap = mutableMapOf<NodeInfo, MutableList<JobTransfer>>()
-            transfers.forEach { transfer ->
-                if (transfer.recipient() == thisNode) {
-                    requestMap.putIntoList(transfer.job().owner(), transfer)
-                }
+    /**
+     * Asks every owner of a job coming our way for its jobs, all at once up to the fan-out. Each owner answers
+     * with its jobs in the same exchange.
+     */
+    private fun fetchMyJobs(transfers: List<JobTransfer>, decidedAtMillis: Long) {
+        sendLog(LogLevel.DEBUG) { "NODE $thisNode IS FETCHING: $transfers" }
+        val requestMap = mutableMapOf<NodeInfo, MutableList<JobTransfer>>()
+        transfers.forEach { transfer ->
+            if (transfer.recipient() == thisNode) {
+                requestMap.putIntoList(transfer.job().owner(), transfer)
             }
-            sendLog("NODE $thisNode request map $requestMap")
+        }
+        sendLog(LogLevel.DEBUG) { "NODE $thisNode request map $requestMap" }
+        // Nothing coming our way, eg. we only donate. Donated jobs get picked up by the recipients
+        if (requestMap.isEmpty()) {
+            stopBalancing()
+        } else {
             sendLog("NODE $thisNode ORIGINAL OPS ${operationsToResume.addAndGet(requestMap.size)}")
 
-            requestMap.forEach { (owner, transfers) ->
-                sendLog("NODE $thisNode requesting $transfers from $owner")
-
-                // Synchronous cause deadlines
-                val response = send(Message.createJobTransferRequest(transfers), owner.address(), owner.port())
-                response?.jobs()?.let {
-                    synchronized(this) {
-                        queue.addAll(it)
+            val fetches = requestMap.map { (owner, transfers) ->
+                sendLog(LogLevel.DEBUG) { "NODE $thisNode requesting $transfers from $owner" }
+                owner to transferExecutor.submit {
+                    val response = send(Message.createJobTransferRequest(transfers), owner.address(), owner.port())
+                    response?.jobs()?.let {
+                        workers.submitAll(it)
+                        recordTransferLatency(decidedAtMillis)
                     }
                 }
-                balancing.set(operationsToResume.decrementAndGet() != 0)
-                sendLog("NODE $thisNode NEW OPS ${operationsToResume.get()}")
             }
-        }
-    }
-
-    /**
-     * Dequeues an item but returns null instead of throwing if there ain't any.
-     *
-     * NOTE: not thread safe.
-     */
-    private fun <T>LinkedList<T>.removeFirstOrNull(): T? {
-        return try {
-            removeFirst()
-        } catch (nsex: NoSuchElementException) {
-            null
+            awaitTransfers(fetches)
+            if (operationsToResume.addAndGet(-requestMap.size) == 0) {
+                stopBalancing()
+            }
+            sendLog(LogLevel.DEBUG) { "NODE $thisNode NEW OPS ${operationsToResume.get()}" }
         }
     }
 
@@ -832,6 +1585,11 @@ class Node {
     }
 }
 
+/**
+ * A child declared dead, at [level] of its parent's hierarchy, and the [heir] that took its place.
+ */
+private class DeadChild(val level: Int, var heir: NodeInfo? = null)
+
 /**
  * Just a containerized way of keeping track of transferred weights. Don't wanna be recomputing anything.
  */
@@ -887,12 +1645,10 @@ class TransferContainer(val node: NodeInfo, jobs: List<JobInfo>): Comparable<Tra
 
     fun getAdded() = added
 
-    fun weight() = totalRemaining + totalAdded
-
-    // Reversed cause descending
-    override fun compareTo(other: TransferContainer) = other.weight().compareTo(weight())
-
-    fun collapsed(): TransferContainer {
+    /**
+     * The jobs currently in the container, ie. the ones not picked yet plus the ones assigned.
+     */
+    fun jobs(): List<JobInfo> {
         val jobs = mutableListOf<JobInfo>()
         for (job in jobsBySize) {
             if (job != null) {
@@ -900,9 +1656,16 @@ class TransferContainer(val node: NodeInfo, jobs: List<JobInfo>): Comparable<Tra
             }
         }
         jobs.addAll(added)
-        return TransferContainer(node, jobs)
+        return jobs
     }
 
+    fun weight() = totalRemaining + totalAdded
+
+    // Reversed cause descending
+    override fun compareTo(other: TransferContainer) = other.weight().compareTo(weight())
+
+    fun collapsed() = TransferContainer(node, jobs())
+
     private fun JobInfo?.weightOrMax() = this?.weight() ?: Long.MAX_VALUE
 }
 
@@ -10,6 +10,7 @@ import com.izzyalonso.pitt.cs3551.model.notices.NodesSpawned
 import com.izzyalonso.pitt.cs3551.model.notices.ResponseMessage
 import com.izzyalonso.pitt.cs3551.net.*
 import com.izzyalonso.pitt.cs3551.util.BaseCollector
+import com.izzyalonso.pitt.cs3551.util.Config
 import com.izzyalonso.pitt.cs3551.util.Logger
 import java.net.Socket
 
@@ -29,6 +30,7 @@ class NodeController(private val port: Int?) {
     private var nodeCollector: NodeCollector? = null
 
     private lateinit var ipAddress: String
+    private lateinit var hostAddress: String
 
 
     /**
@@ -40,6 +42,9 @@ class NodeController(private val port: Int?) {
         Logger.i("Fetching IP address...")
         ipAddress = getIpAddress()
         Logger.i("IP address: $ipAddress")
+        // Nodes tell hosts apart by this one, the external address is the same for a whole network behind a NAT
+        hostAddress = Config.hostAddress.ifEmpty { getInterfaceAddress() }
+        Logger.i("Host address: $hostAddress")
 
         // Start listening to a port, synchronously
         ServerSocketInterface(object: ServerSocketInterface.ListenerAdapter() {
@@ -50,12 +55,14 @@ class NodeController(private val port: Int?) {
                 handleMessage(message, socket)
             }
 
+            override fun mayBlock(message: Message) = message.spinUpNodes() != null // <- Waits for every node
+
             override fun onError(exception: Exception) {
                 if (exception is PortAlreadyUsedException) {
                     Logger.i("FATAL: The requested port is already in use.")
                 }
             }
-        }).startListening(port ?: DEFAULT_PORT)
+        }, nio = ServerSocketInterface.NioConfig.fromConfig()).startListening(port ?: DEFAULT_PORT)
     }
 
     @VisibleForInnerAccess
@@ -69,12 +76,13 @@ class NodeController(private val port: Int?) {
                 return
             }
 
-            nodeCollector = NodeCollector(ipAddress, request.nodeCount())
+            nodeCollector = NodeCollector(hostAddress, request.nodeCount())
             for (i in 0 until request.nodeCount()) {
                 val builder = ProcessBuilder("java", "-jar", "lb.jar", "-n")
                 val environment = builder.environment()
                 environment[ENV_CONTROLLER_PORT] = (port ?: DEFAULT_PORT).toString()
                 environment[ENV_NODE_ID] = i.toString()
+                environment[ENV_HOST_ADDRESS] = hostAddress
                 val process = builder.start()
                 nodeProcesses.add(process)
             }
@@ -112,13 +120,14 @@ class NodeController(private val port: Int?) {
 
         const val ENV_CONTROLLER_PORT = "LB_CONTROLLER_PORT"
         const val ENV_NODE_ID = "LB_NODE_ID"
+        const val ENV_HOST_ADDRESS = "LB_HOST_ADDRESS" // <- Same as the setting, so it can be set on the controller
     }
 
     /**
      * Collects Nodes' online notices.
      */
     @AnyThread
-    class NodeCollector(private val ipAddress: String, nodeCount: Int): BaseCollector<List<NodeInfo>>(nodeCount) {
+    class NodeCollector(private val address: String, nodeCount: Int): BaseCollector<List<NodeInfo>>(nodeCount) {
 
         @GuardedBy(who = "this")
         private val nodes = mutableListOf<NodeInfo>()
@@ -128,7 +137,7 @@ class NodeController(private val port: Int?) {
          */
         fun handleResponse(nodeOnline: NodeOnline) {
             synchronized(this) {
-                nodes.add(NodeInfo.create(nodeOnline.id(), "localhost", nodeOnline.port()))
+                nodes.add(NodeInfo.create(nodeOnline.id(), address, nodeOnline.port())) // <- Ours are all on this host
             }
             countDown()
         }
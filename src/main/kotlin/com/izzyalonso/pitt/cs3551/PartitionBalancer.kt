@@ -0,0 +1,116 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.model.JobInfo
+import com.izzyalonso.pitt.cs3551.model.JobTransfer
+import com.izzyalonso.pitt.cs3551.model.NodeInfo
+import com.izzyalonso.pitt.cs3551.util.Config
+import java.util.*
+
+
+/**
+ * Which algorithm decides the transfers of a balancing operation.
+ */
+enum class BalancingMode(val id: String) {
+    /**
+     * The original donor/recipient sweep in [Node.loadBalance].
+     */
+    GREEDY("greedy"),
+
+    /**
+     * [PartitionBalancer].
+     */
+    PARTITION("partition");
+
+    companion object {
+        /**
+         * The mode this process balances with.
+         */
+        val configured = of(Config.balancingMode)
+
+        /**
+         * Looks up a mode by [id], falling back to greedy for anything unknown.
+         */
+        fun of(id: String?) = values().firstOrNull { it.id == id } ?: GREEDY
+    }
+}
+
+/**
+ * Longest processing time first partitioning, trying to move as few jobs as possible.
+ *
+ * Works in two passes:
+ *  - Every node over the target (the average, rounded up) releases jobs until it no longer is. It releases the
+ *    lightest job that gets it there on its own if there is one, the heaviest one otherwise, so it takes few
+ *    transfers and nobody over donates. Jobs are sorted by weight, so finding that job is a binary search.
+ *  - Released jobs are handed out heaviest first, each to whoever is the lightest at that point, which is plain
+ *    LPT. A job that ends up back with its donor just doesn't move.
+ *
+ * Nodes are kept in a heap by load, so every pick is O(log n). All in all it's O(m log m) in the number of
+ * jobs, where the sweep is O(m²) at worst.
+ */
+object PartitionBalancer {
+
+    fun balance(transferContainers: List<TransferContainer>): MutableList<JobTransfer> {
+        val jobTransfers = mutableListOf<JobTransfer>()
+        if (transferContainers.isEmpty()) {
+            return jobTransfers
+        }
+
+        val total = transferContainers.fold(0L) { total, container -> total + container.weight() }
+        val target = (total + transferContainers.size - 1)/transferContainers.size
+
+        // Release the excess
+        val released = mutableListOf<Pair<JobInfo, NodeInfo>>()
+        val bins = PriorityQueue<Bin>(transferContainers.size)
+        for (container in transferContainers) {
+            var load = container.weight()
+            if (load > target) {
+                val jobs = container.jobs().sorted() // <- Heaviest first
+                var next = 0
+                while (load > target && next < jobs.size) {
+                    val excess = load - target
+                    // The heaviest job left isn't enough, release it and keep going. Otherwise, the lightest one
+                    // that is does it, and that's the last one
+                    val job = if (jobs[next].weight() < excess) jobs[next++] else jobs[lastAtLeast(jobs, next, excess)]
+                    load -= job.weight()
+                    released.add(Pair(job, container.node))
+                }
+            }
+            bins.add(Bin(container.node, load))
+        }
+
+        // And hand it out, heaviest first to the lightest
+        released.sortByDescending { it.first.weight() }
+        for ((job, donor) in released) {
+            val bin = bins.poll()
+            bin.load += job.weight()
+            if (bin.node != donor) {
+                jobTransfers.add(JobTransfer.create(job, donor, bin.node))
+            }
+            bins.add(bin)
+        }
+
+        return jobTransfers
+    }
+
+    /**
+     * Binary search for the last job at or after [from] weighing at least [weight], jobs being sorted heaviest
+     * first. The job at [from] has to qualify.
+     */
+    private fun lastAtLeast(jobs: List<JobInfo>, from: Int, weight: Long): Int {
+        var low = from
+        var high = jobs.size - 1
+        while (low < high) {
+            val middle = (low + high + 1)/2
+            if (jobs[middle].weight() >= weight) {
+                low = middle
+            } else {
+                high = middle - 1
+            }
+        }
+        return low
+    }
+
+    private class Bin(val node: NodeInfo, var load: Long): Comparable<Bin> {
+        override fun compareTo(other: Bin) = load.compareTo(other.load)
+    }
+}
@@ -37,7 +37,7 @@ fun main(args: Array<String>) {
         "-x" -> runClient(map["--controllers"]?.get(0))
         "-c" -> runNodeController(map["--port"]?.first()?.toInt())
         "-n" -> runNode()
-        "-l" -> runLogger()
+        "-l" -> runLogger(map["--file"]?.firstOrNull())
         else -> printHelp()
     }
 }
@@ -76,8 +76,8 @@ private fun runNode() {
     Node().start()
 }
 
-private fun runLogger() {
-    LogNode().start()
+private fun runLogger(logFilePath: String?) {
+    LogNode(logFilePath?.let { File(it) }).start()
 }
 
 private fun printHelp() {
@@ -88,6 +88,7 @@ private fun printHelp() {
     println("\t-l to tun the logger.")
     println("\t--port P (node controller only) to override the node controller's operating port, where P is the port number.")
     println("\t--controllers F (client only) to let the client where the node controllers are, where F is the path to the csv file.")
+    println("\t--file F (logger only) to also append logs to a file, where F is the path to the file.")
     println("\t-d to print out debug logs.")
     println("\t-h for help.")
 }
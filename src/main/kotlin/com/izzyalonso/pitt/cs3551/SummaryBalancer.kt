@@ -0,0 +1,99 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.model.JobSummary
+import com.izzyalonso.pitt.cs3551.model.NodeInfo
+import com.izzyalonso.pitt.cs3551.model.TreeNode
+import com.izzyalonso.pitt.cs3551.model.WeightTransfer
+
+
+/**
+ * Plans a balancing operation out of [JobSummary]s rather than actual jobs, so planning takes as much memory as
+ * there are nodes no matter how many jobs they have queued.
+ *
+ * Every node is to end up with the average weight. Nodes over it are donors, nodes under it recipients. They're
+ * matched up bottom up along the levels of the hierarchy the planning node owns: the subtree of each of its
+ * children first evens itself out, and only what's left over moves between sibling subtrees, a level up. That way
+ * weight moves as locally as it can. The planning node doesn't need to know what those subtrees look like inside,
+ * only whose summaries came from where. Donors are matched to recipients heaviest first, so they end up with as
+ * few recipients as possible.
+ *
+ * Plans are weights only, donors pick the actual jobs when they carry them out.
+ */
+object SummaryBalancer {
+
+    /**
+     * Plans a balancing operation over [hierarchy], [subtrees] mapping every child of the planning node to the
+     * summaries of its subtree, and the planning node to its own.
+     */
+    fun plan(hierarchy: TreeNode, subtrees: Map<NodeInfo, List<JobSummary>>): List<WeightTransfer> {
+        val transfers = mutableListOf<WeightTransfer>()
+        val summaries = subtrees.values.flatten()
+        if (summaries.isNotEmpty()) {
+            val average = summaries.fold(0L) { total, summary -> total + summary.totalWeight() }/summaries.size
+            match(hierarchy, hierarchy.node(), subtrees, average, transfers)
+        }
+        return transfers
+    }
+
+    /**
+     * Matches up the donors and recipients in a subtree and returns the ones that are left.
+     */
+    private fun match(
+        tree: TreeNode,
+        planner: NodeInfo,
+        subtrees: Map<NodeInfo, List<JobSummary>>,
+        average: Long,
+        transfers: MutableList<WeightTransfer>
+    ): Shares {
+
+        val shares = Shares()
+        if (tree.isLeaf || tree.node() != planner) {
+            // A child's whole subtree, or the planner itself at the bottom. Missing ones aren't in this operation
+            subtrees[tree.node()]?.forEach { summary ->
+                val excess = summary.totalWeight() - average
+                // Not worth asking for less than the node's lightest job, it'd have nothing to send
+                if (excess > 0 && excess >= summary.smallestWeight()) {
+                    shares.donors.add(Share(summary.node(), excess))
+                } else if (excess < 0) {
+                    shares.recipients.add(Share(summary.node(), -excess))
+                }
+            }
+        } else {
+            for (child in tree.children()) {
+                val childShares = match(child, planner, subtrees, average, transfers)
+                shares.donors.addAll(childShares.donors)
+                shares.recipients.addAll(childShares.recipients)
+            }
+        }
+
+        // Whatever's left has to move between the children's subtrees
+        shares.donors.sortByDescending { it.weight }
+        shares.recipients.sortByDescending { it.weight }
+        var donor = 0
+        var recipient = 0
+        while (donor < shares.donors.size && recipient < shares.recipients.size) {
+            val from = shares.donors[donor]
+            val to = shares.recipients[recipient]
+            val weight = minOf(from.weight, to.weight)
+            transfers.add(WeightTransfer.create(from.node, to.node, weight))
+            from.weight -= weight
+            to.weight -= weight
+            if (from.weight == 0L) {
+                donor++
+            }
+            if (to.weight == 0L) {
+                recipient++
+            }
+        }
+        shares.donors.subList(0, donor).clear()
+        shares.recipients.subList(0, recipient).clear()
+        return shares
+    }
+
+    private class Share(val node: NodeInfo, var weight: Long)
+
+    private class Shares {
+        val donors = mutableListOf<Share>()
+        val recipients = mutableListOf<Share>()
+    }
+}
@@ -0,0 +1,293 @@
+package com.izzyalonso.pitt.cs3551
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.model.Job
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+
+/**
+ * The workers executing a node's jobs. Every worker has its own deque; new jobs are spread round robin and a worker
+ * that runs out of jobs steals from the back of somebody else's deque before going to sleep. Each worker keeps its
+ * own [LoadTracker], the pool's load being the average of them, ie. the fraction of the pool's time spent busy.
+ *
+ * Deques are lock free, and a worker with nothing to do lists itself as idle and parks; submitting a job unparks
+ * exactly one idle worker, so jobs get picked up as soon as they're submitted rather than whenever a sleeping
+ * worker happens to wake up. The time between a job being submitted and it starting is recorded in the
+ * worker.startLatency timer.
+ *
+ * Queued jobs are also indexed by id, so handing jobs over to other nodes costs in proportion to the number of
+ * jobs handed over rather than to the length of the queues. Jobs taken out by id are only marked as such, and
+ * workers skip them when they come across them.
+ *
+ * Workers never stop while load balancing. Instead, balancing works off a [Snapshot]: every job gets a version
+ * when submitted, and taking jobs out by id only considers the ones that were in the snapshot and are still
+ * waiting, so jobs that started or finished since get left out and jobs submitted since stay where they are.
+ */
+@AnyThread
+class WorkerPool(
+    size: Int,
+    private val execute: (Job) -> Unit
+) {
+    private val workers = List(size) { Worker(it) }
+    private val idleWorkers = ConcurrentLinkedQueue<Worker>()
+    private val jobsById = ConcurrentHashMap<Int, Queued>()
+    private val running = AtomicBoolean(false)
+    private val nextWorker = AtomicInteger()
+    private val queuedWeight = AtomicLong()
+    private val lastVersion = AtomicLong()
+    // Weight of the jobs run so far and how long they took, to tell how long a unit of weight takes
+    private val executedWeight = AtomicLong()
+    private val executedNanos = AtomicLong()
+
+
+    fun start() {
+        if (!running.compareAndSet(false, true)) {
+            return
+        }
+        workers.forEach { worker ->
+            worker.thread = Thread({ worker.run() }, "lb-worker-${worker.index}").apply {
+                isDaemon = true
+                start()
+            }
+        }
+    }
+
+    /**
+     * Stops the workers once they're done with whatever they're running and locks their trackers.
+     */
+    fun stop() {
+        running.set(false)
+        workers.forEach { worker ->
+            worker.thread?.let { LockSupport.unpark(it) }
+            worker.loadTracker.done()
+        }
+    }
+
+    fun submit(job: Job) {
+        val queued = Queued(job, lastVersion.incrementAndGet())
+        queuedWeight.addAndGet(job.weight())
+        jobsById.compute(job.id()) { _, head -> queued.also { it.sameId = head } }
+        workers[Math.floorMod(nextWorker.getAndIncrement(), workers.size)].deque.addLast(queued)
+        wakeUpIdleWorker()
+    }
+
+    fun submitAll(jobs: Collection<Job>) = jobs.forEach { submit(it) }
+
+    /**
+     * The jobs waiting to be picked up, jobs already running excluded, along with the version they're up to.
+     * Weakly consistent: jobs picked up while the snapshot is being taken may or may not be in it, but jobs
+     * submitted after it was started never are. Passing a previous snapshot's version leaves out anything newer.
+     */
+    fun snapshot(upToVersion: Long = Long.MAX_VALUE): Snapshot {
+        val version = minOf(lastVersion.get(), upToVersion)
+        val jobs = mutableListOf<Job>()
+        workers.forEach { worker ->
+            worker.deque.forEach {
+                if (!it.isTaken && it.version <= version) {
+                    jobs.add(it.job)
+                }
+            }
+        }
+        return Snapshot(version, jobs)
+    }
+
+    /**
+     * Takes the queued jobs whose ids are in [jobIds] out of the pool and returns them. Only jobs submitted up to
+     * [upToVersion] count, pass a snapshot's version to stick to what's in it. A job that a worker picks up in the
+     * meantime stays with the worker.
+     */
+    fun removeJobs(jobIds: Set<Int>, upToVersion: Long = Long.MAX_VALUE): List<Job> {
+        val removed = mutableListOf<Job>()
+        jobIds.forEach { id ->
+            jobsById.computeIfPresent(id) { _, head ->
+                var queued: Queued? = head
+                while (queued != null) {
+                    // Only one of us and the workers gets to take an entry
+                    if (queued.version <= upToVersion && queued.take()) {
+                        queuedWeight.addAndGet(-queued.job.weight())
+                        removed.add(queued.job)
+                    }
+                    queued = queued.sameId
+                }
+                head.withoutTaken()
+            }
+        }
+        return removed
+    }
+
+    /**
+     * Takes about half of the queued weight out of the pool for another node that ran out of work, off the back of
+     * the deques like workers stealing from each other. Goes over half by at most a job.
+     */
+    fun stealHalf() = takeWeight(queuedWeight.get()/2, overshoot = true)
+
+    /**
+     * Takes jobs off the back of the deques, round robin, until they add up to [weight]. Going over it by a job is
+     * fine if [overshoot]; otherwise jobs that don't fit stay where they are, give or take a job a worker picks up
+     * while we're looking.
+     */
+    fun takeWeight(weight: Long, overshoot: Boolean): List<Job> {
+        val taken = mutableListOf<Job>()
+        var takenWeight = 0L
+        var doneDeques = 0
+        var next = 0
+        while (takenWeight < weight && doneDeques < workers.size) {
+            val deque = workers[next].deque
+            val last = deque.peekLast()
+            val queued = if (!overshoot && last != null && takenWeight + last.job.weight() > weight) {
+                null // <- Too big, this deque's done
+            } else {
+                take { deque.pollLast() }
+            }
+            if (queued != null) {
+                taken.add(queued.job)
+                takenWeight += queued.job.weight()
+                doneDeques = 0
+            } else {
+                doneDeques++
+            }
+            next = (next + 1)%workers.size
+        }
+        return taken
+    }
+
+    /**
+     * Whether some worker is waiting for something to do.
+     */
+    fun hasIdleWorkers() = idleWorkers.isNotEmpty()
+
+    /**
+     * The fraction of the time workers spent busy over the last n [seconds], averaged across workers.
+     */
+    fun getLoad(seconds: Int): Double = workers.map { it.loadTracker.getLoad(seconds) }.average()
+
+    /**
+     * The moving average of the load over a [horizon], averaged across workers.
+     */
+    fun getAverageLoad(horizon: LoadTracker.Horizon): Double =
+        workers.map { it.loadTracker.getAverageLoad(horizon) }.average()
+
+    /**
+     * Total weight of the jobs waiting to be picked up, divided by the number of workers that will pick them up.
+     */
+    fun backlog() = queuedWeight.get().toDouble()/workers.size
+
+    /**
+     * How long a unit of weight has taken to run on average, null until some weight got run.
+     */
+    fun nanosPerWeight(): Double? {
+        val weight = executedWeight.get()
+        return if (weight == 0L) null else executedNanos.get().toDouble()/weight
+    }
+
+    private fun wakeUpIdleWorker() {
+        idleWorkers.poll()?.thread?.let { LockSupport.unpark(it) }
+    }
+
+    /**
+     * Own deque first, front to back, then the back of everybody else's, starting with the next worker over.
+     */
+    private fun nextJob(worker: Worker): Queued? {
+        take { worker.deque.pollFirst() }?.let { return it }
+        for (offset in 1 until workers.size) {
+            val victim = workers[(worker.index + offset)%workers.size]
+            take { victim.deque.pollLast() }?.let { return it }
+        }
+        return null
+    }
+
+    /**
+     * Polls until it gets hold of a job nobody took yet, dropping the ones that were taken by id along the way.
+     */
+    private inline fun take(poll: () -> Queued?): Queued? {
+        while (true) {
+            val queued = poll() ?: return null
+            if (queued.take()) {
+                queuedWeight.addAndGet(-queued.job.weight())
+                jobsById.computeIfPresent(queued.job.id()) { _, head -> head.withoutTaken() }
+                return queued
+            }
+        }
+    }
+
+    /**
+     * The queued jobs at some point in time. Jobs submitted later have higher versions.
+     */
+    class Snapshot(val version: Long, val jobs: List<Job>)
+
+    /**
+     * A job, its version and when it was submitted. Whoever takes it first, a worker or a removal by id, gets to
+     * keep it.
+     */
+    private class Queued(val job: Job, val version: Long) {
+        val submittedNanos = System.nanoTime()
+        private val taken = AtomicBoolean(false)
+        // Other queued jobs with the same id. Ids are only unique per client, so this is pretty much always null.
+        // Only touched from within the id map's atomic operations
+        var sameId: Queued? = null
+
+        val isTaken get() = taken.get()
+
+        fun take() = taken.compareAndSet(false, true)
+
+        /**
+         * This chain of jobs sharing an id, minus the ones taken already. Null if there's nothing left.
+         */
+        fun withoutTaken(): Queued? {
+            val rest = sameId?.withoutTaken()
+            return if (isTaken) {
+                rest
+            } else {
+                sameId = rest
+                this
+            }
+        }
+    }
+
+    private inner class Worker(val index: Int) {
+        val deque = ConcurrentLinkedDeque<Queued>()
+        val loadTracker = LoadTracker()
+        @Volatile var thread: Thread? = null
+
+        fun run() {
+            while (running.get()) {
+                val queued = nextJob(this) ?: awaitJob() ?: continue
+                Metrics.record("worker.startLatency", System.nanoTime() - queued.submittedNanos)
+                loadTracker.startWork()
+                val start = System.nanoTime()
+                execute(queued.job)
+                executedNanos.addAndGet(System.nanoTime() - start)
+                executedWeight.addAndGet(queued.job.weight())
+                loadTracker.endWork()
+            }
+        }
+
+        /**
+         * Lists this worker as idle and parks until a job is submitted. Looks for jobs once more after listing
+         * itself, otherwise a job submitted in between would go unnoticed. Returns null when woken up without
+         * finding a job, eg. when stopping.
+         */
+        private fun awaitJob(): Queued? {
+            loadTracker.startSleep()
+            idleWorkers.add(this)
+            var queued = nextJob(this)
+            if (queued == null && running.get()) {
+                LockSupport.park(this)
+                queued = nextJob(this)
+            }
+            if (!idleWorkers.remove(this) && queued != null) {
+                // Somebody woke us up for a job, but we got a different one. Pass the wakeup along
+                wakeUpIdleWorker()
+            }
+            loadTracker.endSleep()
+            return queued
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.izzyalonso.pitt.cs3551.net
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
+import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.model.NodeInfo
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.channels.SocketChannel
+import java.util.*
+
+
+/**
+ * Where a message is headed. Pool connections are keyed by it.
+ */
+data class Peer(val address: String, val port: Int) {
+    constructor(node: NodeInfo): this(node.address(), node.port())
+}
+
+/**
+ * Keeps persistent connections to peers around so that sending a message doesn't cost a TCP handshake. A
+ * connection is used by one round trip at a time, nothing's multiplexed; concurrent senders to the same peer get
+ * their own connection, and up to [maxIdlePerPeer] of them are kept around once they're done.
+ *
+ * Idle connections are checked before they're handed out again, and the ones the peer closed or reset in the
+ * meantime (eg. it restarted) are replaced. One that still breaks on the way out is replaced as well, as long as
+ * not a byte of the message went out on it. Past that point the peer may have handled the message already, so the
+ * error goes to the caller instead.
+ *
+ * Metrics: pool.hits, pool.misses, pool.stale, pool.reconnects, and the pool.connect and pool.request timers.
+ */
+@AnyThread
+object ConnectionPool {
+    @Volatile var maxIdlePerPeer = 4
+    @Volatile var connectTimeoutMillis = 5000
+
+    @GuardedBy(who = "this")
+    private val idle = mutableMapOf<Peer, ArrayDeque<WireConnection>>()
+
+
+    /**
+     * Sends a [message] to a [peer] and waits for the response, if any.
+     *
+     * @throws IOException if the peer can't be reached, or the round trip broke or timed out after the message
+     * started going out, in which case the peer may or may not have gotten it.
+     */
+    @Throws(IOException::class)
+    fun request(peer: Peer, message: Message): Message? {
+        val start = System.nanoTime()
+        var connection = acquire(peer)
+        while (true) {
+            val sentBefore = connection.bytesSent
+            try {
+                val response = connection.request(message)
+                release(peer, connection)
+                Metrics.record("pool.request", System.nanoTime() - start)
+                return response
+            } catch (iox: IOException) {
+                connection.close()
+                // A fresh connection failing means the peer is really unreachable, a reused one may have just gone
+                // stale. Only worth another go if the peer can't have seen any of the message though
+                if (!connection.reused || connection.bytesSent != sentBefore) {
+                    throw iox
+                }
+                Metrics.increment("pool.reconnects")
+                connection = connect(peer)
+            }
+        }
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    fun clear() {
+        val connections = synchronized(this) {
+            val connections = idle.values.flatten()
+            idle.clear()
+            connections
+        }
+        connections.forEach { it.close() }
+    }
+
+    private fun acquire(peer: Peer): WireConnection {
+        while (true) {
+            val connection = synchronized(this) {
+                idle[peer]?.pollFirst()
+            } ?: break
+            if (connection.isStale()) {
+                Metrics.increment("pool.stale")
+                connection.close()
+                continue
+            }
+            Metrics.increment("pool.hits")
+            connection.reused = true
+            return connection
+        }
+        Metrics.increment("pool.misses")
+        return connect(peer)
+    }
+
+    private fun release(peer: Peer, connection: WireConnection) {
+        val kept = synchronized(this) {
+            val connections = idle.getOrPut(peer) { ArrayDeque() }
+            if (connections.size < maxIdlePerPeer) {
+                connections.addFirst(connection) // Most recently used first
+                true
+            } else {
+                false
+            }
+        }
+        if (!kept) {
+            connection.close()
+        }
+    }
+
+    private fun connect(peer: Peer): WireConnection = Metrics.time("pool.connect") {
+        val socket = SocketChannel.open().socket() // <- Over a channel so idle connections can be checked on
+        try {
+            socket.tcpNoDelay = true
+            socket.connect(InetSocketAddress(peer.address, peer.port), connectTimeoutMillis)
+            WireConnection.open(socket)
+        } catch (iox: IOException) {
+            socket.close()
+            throw iox
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.izzyalonso.pitt.cs3551.net
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
+import com.izzyalonso.pitt.cs3551.logNodePort
+import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.util.Config
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.io.IOException
+
+
+enum class LogLevel {
+    DEBUG, INFO, WARN, ERROR
+}
+
+/**
+ * Ships log lines to the [LogNode][com.izzyalonso.pitt.cs3551.LogNode] in batches. Lines go into a fixed size ring
+ * buffer and a background thread sends whatever piled up as a single message every flush interval, over a pooled
+ * connection. Logging never blocks on the network.
+ *
+ * Under pressure lines are shed rather than buffered without bound: past three quarters of the capacity only one
+ * in every [debugSampleRate] debug lines makes it in, and a full buffer drops whatever comes next. Dropped lines
+ * are counted in log.dropped, sampled out ones in log.sampledOut.
+ */
+@AnyThread
+object LogShipper {
+    private val minLevel = LogLevel.values().firstOrNull { it.name.equals(Config.logLevel, true) } ?: LogLevel.INFO
+    private val flushIntervalMillis = Config.logFlushMillis
+    private const val debugSampleRate = 10
+    private const val maxBatchSize = 1000
+
+    @GuardedBy(who = "this")
+    private val buffer = arrayOfNulls<String>(Config.logBufferSize)
+    @GuardedBy(who = "this")
+    private var head = 0 // <- Oldest line
+    @GuardedBy(who = "this")
+    private var size = 0
+    @GuardedBy(who = "this")
+    private var debugSeen = 0L
+
+    // Started the first time something is logged
+    private val flusher by lazy {
+        Thread {
+            while (true) {
+                try {
+                    Thread.sleep(flushIntervalMillis)
+                } catch (ix: InterruptedException) {
+                    // Flush early
+                }
+                flush()
+            }
+        }.apply {
+            name = "lb-log-flusher"
+            isDaemon = true
+            start()
+        }
+    }
+
+
+    fun isEnabled(level: LogLevel) = level >= minLevel
+
+    /**
+     * Queues a log [line] to be shipped on the next flush.
+     */
+    fun append(line: String, level: LogLevel = LogLevel.INFO) {
+        if (!isEnabled(level)) {
+            return
+        }
+        flusher // <- Make sure it's running
+
+        val accepted = synchronized(this) {
+            when {
+                size == buffer.size -> false
+                level == LogLevel.DEBUG && size >= buffer.size*3/4 && debugSeen++%debugSampleRate != 0L -> {
+                    Metrics.increment("log.sampledOut")
+                    null
+                }
+                else -> {
+                    buffer[(head + size)%buffer.size] = "[$level] $line"
+                    size++
+                    true
+                }
+            }
+        }
+        if (accepted == false) {
+            Metrics.increment("log.dropped")
+        }
+    }
+
+    /**
+     * Sends everything in the buffer right away, in as many batches as needed. Blocks until it's been sent.
+     */
+    fun flush() {
+        while (true) {
+            val batch = drain()
+            if (batch.isEmpty()) {
+                return
+            }
+            try {
+                ConnectionPool.request(Peer("localhost", logNodePort), Message.createLogBatch(batch))
+                Metrics.increment("log.shipped", batch.size.toLong())
+            } catch (iox: IOException) {
+                // No log node, nowhere to send these to
+                Metrics.increment("log.dropped", batch.size.toLong())
+                return
+            }
+        }
+    }
+
+    private fun drain(): List<String> = synchronized(this) {
+        val count = minOf(size, maxBatchSize)
+        val batch = ArrayList<String>(count)
+        repeat(count) {
+            batch.add(buffer[head]!!)
+            buffer[head] = null
+            head = (head + 1)%buffer.size
+        }
+        size -= count
+        batch
+    }
+}
@@ -1,13 +1,25 @@
 package com.izzyalonso.pitt.cs3551.net
 
-import com.izzyalonso.pitt.cs3551.logNodePort
 import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.util.Metrics
 import java.io.*
+import java.net.Inet4Address
+import java.net.NetworkInterface
 import java.net.Socket
 import java.net.URL
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import kotlin.text.Charsets.UTF_8
 
 
+// Async sends used to get a brand new thread each; these get reused. Daemons so they don't keep processes alive
+private val asyncExecutor: ExecutorService = Executors.newCachedThreadPool { runnable ->
+    Thread(runnable, "lb-async-send").apply { isDaemon = true }
+}
+// Wait before the nth retry, times n
+private const val retryBackoffMillis = 100L
+
+
 private fun URL.bufferedReader() = BufferedReader(InputStreamReader(openStream()))
 
 fun Socket.printWriter() = PrintWriter(OutputStreamWriter(getOutputStream(), UTF_8), true)
@@ -22,59 +34,94 @@ fun getIpAddress() = URL("http://checkip.amazonaws.com/").bufferedReader().use {
     reader.readLine() ?: throw RuntimeException("The IP address couldn't be determined")
 }
 
-fun Socket.send(message: Message) = printWriter().println(message.toJson())
+/**
+ * Returns the address other machines on the network know this one by: the first IPv4 address of an interface
+ * that's up and isn't a loopback, or localhost if there's none. Unlike [getIpAddress], it doesn't leave the machine.
+ */
+fun getInterfaceAddress(): String = NetworkInterface.getNetworkInterfaces().toList()
+    .filter { it.isUp && !it.isLoopback && !it.isVirtual }
+    .flatMap { it.inetAddresses.toList() }
+    .firstOrNull { it is Inet4Address }
+    ?.hostAddress ?: "localhost"
+
+fun Socket.send(message: Message) = if (this is ReplySocket) {
+    reply(message)
+} else {
+    printWriter().let { writer ->
+        writer.writeJsonLine(message)
+        writer.flush()
+    }
+}
 // Send and close closes before the other side gets to read the message.
 // This is obv no bueno, but I'm keeping it around cause I'm curious.
-fun Socket.sendAndClose(message: Message) = printWriter().use { writer ->
-    writer.println(message)
+fun Socket.sendAndClose(message: Message) = if (this is ReplySocket) {
+    reply(message)
+} else {
+    printWriter().use { writer ->
+        writer.println(message)
+    }
+}
+
+/**
+ * Queues a log line for the log node. Lines are shipped in batches by the [LogShipper], this never blocks.
+ */
+fun sendLog(message: String, level: LogLevel = LogLevel.INFO) {
+    LogShipper.append(message, level)
 }
 
-fun sendLog(message: String) {
-    sendAsync(Message.create(message), "localhost", logNodePort)
+/**
+ * Same as above, but the line is only built if the [level] is enabled. Use this for anything chatty or expensive
+ * to put together, like dumps of job lists.
+ */
+inline fun sendLog(level: LogLevel, message: () -> String) {
+    if (LogShipper.isEnabled(level)) {
+        LogShipper.append(message(), level)
+    }
 }
 
+/**
+ * Queues a log line and ships everything queued so far before returning.
+ */
 fun sendLogSync(message: String) {
-    send(Message.create(message), "localhost", logNodePort)
+    LogShipper.append(message)
+    LogShipper.flush()
 }
 
 /**
  * Sends a [message] to a machine at the provided [address] and [port] asynchronously. Optionally, you can register
- * a [callback] to get notified iff and when the recipient sends a response.
+ * a [callback] to get notified iff and when the recipient sends a response. See [send] for [attempts].
  */
-fun sendAsync(message: Message, address: String, port: Int, callback: MessageCallback? = null) {
-    Thread {
-        send(message, address, port)?.let {
+fun sendAsync(
+    message: Message,
+    address: String,
+    port: Int,
+    callback: MessageCallback? = null,
+    attempts: Int = 1
+) {
+    asyncExecutor.execute {
+        send(message, address, port, attempts)?.let {
             callback?.onResponseReceived(it)
         }
-    }.start()
+    }
 }
 
 /**
- * Sends a [message] to a machine at the provided [address] and [port] synchronously.
+ * Sends a [message] to a machine at the provided [address] and [port] synchronously. Goes through the
+ * [ConnectionPool], so consecutive messages to the same machine share a connection. If the machine can't be
+ * reached, it tries again up to [attempts] times in total, backing off a little more every time; only worth it
+ * for messages that are fine to get twice. Retries are counted in send.retries.
  */
-fun send(message: Message, address: String, port: Int): Message? {
-    try {
-        Socket(address, port).use { socket ->
-            socket.printWriter().let { out ->
-                // Send the message
-                out.println(message.toJson())
-
-                try { // Try reading a response
-                    socket.bufferedReader().let { reader ->
-                        // If the other end closes the connection the line will be null
-                        val line = reader.readLine()
-                        if (line != null) {
-                            // Read and deliver the response
-                            return@send Message.fromJson(line)
-                        }
-                    }
-                } catch (iox: IOException) {
-                    // DRC
-                }
-            }
+fun send(message: Message, address: String, port: Int, attempts: Int = 1): Message? {
+    for (attempt in 1..attempts) {
+        if (attempt > 1) {
+            Metrics.increment("send.retries")
+            Thread.sleep(retryBackoffMillis*(attempt - 1))
+        }
+        try {
+            return ConnectionPool.request(Peer(address, port), message)
+        } catch (x: Exception) {
+            // x.printStackTrace();
         }
-    } catch (x: Exception) {
-        // x.printStackTrace();
     }
 
     // No message to return
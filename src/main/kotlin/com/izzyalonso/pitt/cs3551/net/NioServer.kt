@@ -0,0 +1,463 @@
+package com.izzyalonso.pitt.cs3551.net
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.model.BinaryCodec
+import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.model.ModelTypeAdapterFactory
+import com.izzyalonso.pitt.cs3551.util.Logger
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStreamReader
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.ArrayDeque
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.text.Charsets.UTF_8
+
+
+/**
+ * The NIO flavor of [ServerSocketInterface]. The calling thread accepts connections and hands them out round robin
+ * to a fixed set of I/O threads, each running its own selector. I/O threads split incoming bytes into messages
+ * (lines or binary frames, depending on the connection's [WireFormat]) and hand each one to a bounded pool of
+ * handler threads, which is where listener callbacks run. When the handler queue is full, the connection that
+ * brought the message stops being read from until a handler frees up; the I/O thread itself never waits, so
+ * replies keep flowing. Messages the listener says [may block][ServerSocketInterface.Listener.mayBlock] get a
+ * thread of their own instead, a handful of those waiting on each other can't take the whole pool down with them.
+ *
+ * Speaks the same protocol as the blocking flavor, legacy one-message connections included.
+ */
+@AnyThread
+internal class NioServer(
+    private val listener: ServerSocketInterface.Listener,
+    private val config: ServerSocketInterface.NioConfig,
+    private val selectTimeoutMillis: Long
+) {
+    private val handlers = ThreadPoolExecutor(
+        config.handlerThreads,
+        config.handlerThreads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue(config.handlerQueueSize),
+        namedThreads("lb-nio-handler")
+    ) // <- Throws when full, the connection holds on to the message and stops reading
+
+    // Few and far between, but can take their sweet time
+    private val blockingHandlers = Executors.newCachedThreadPool(namedThreads("lb-nio-blocking"))
+
+    // Connections holding on to a message the handlers had no room for, across all loops
+    private val stalledCount = AtomicInteger()
+
+    private val loops = List(config.ioThreads) { IoLoop() }
+    @Volatile private var acceptSelector: Selector? = null
+
+
+    /**
+     * Binds to [port] (or any port if null) and serves until [isRunning] returns false.
+     */
+    @Throws(IOException::class)
+    fun run(port: Int?, onBound: (Int) -> Unit, isRunning: () -> Boolean) {
+        ServerSocketChannel.open().use { serverChannel ->
+            serverChannel.bind(InetSocketAddress(port ?: 0))
+            serverChannel.configureBlocking(false)
+            onBound(serverChannel.socket().localPort)
+
+            val ioThreads = loops.mapIndexed { i, loop ->
+                Thread({ loop.run(isRunning) }, "lb-nio-io-$i").apply { start() }
+            }
+
+            Selector.open().use { acceptSelector ->
+                this.acceptSelector = acceptSelector
+                serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT)
+                var next = 0
+                while (isRunning()) {
+                    if (acceptSelector.select(selectTimeoutMillis) == 0) {
+                        continue
+                    }
+                    acceptSelector.selectedKeys().clear()
+                    while (true) {
+                        val channel = serverChannel.accept() ?: break
+                        loops[next++ % loops.size].adopt(channel)
+                    }
+                }
+            }
+
+            ioThreads.forEach { it.join() }
+            handlers.shutdown()
+            blockingHandlers.shutdown()
+        }
+    }
+
+    /**
+     * Gets every thread to notice isRunning went false now rather than on their next select timeout. I/O threads
+     * close their connections on the way out.
+     */
+    fun stop() {
+        acceptSelector?.wakeup()
+        loops.forEach { it.wakeUp() }
+    }
+
+    /**
+     * A selector and the connections it's in charge of. Everything touching keys runs in the loop's thread;
+     * other threads post tasks and wake the selector up.
+     */
+    private inner class IoLoop {
+        private val selector = Selector.open()
+        private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+        private val stalled = ArrayDeque<NioConnection>() // <- Only touched in the loop's thread
+
+        fun adopt(channel: SocketChannel) = post {
+            channel.configureBlocking(false)
+            channel.socket().tcpNoDelay = true
+            val connection = NioConnection(channel, this)
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection)
+        }
+
+        fun post(task: () -> Unit) {
+            tasks.add(task)
+            selector.wakeup()
+        }
+
+        fun wakeUp() {
+            selector.wakeup()
+        }
+
+        fun stall(connection: NioConnection) {
+            stalled.add(connection)
+        }
+
+        /**
+         * Hands stalled connections' messages to the handlers, oldest first, until there's no room left.
+         */
+        fun resumeStalled() {
+            while (true) {
+                val connection = stalled.poll() ?: break
+                if (!connection.resume()) {
+                    stalled.addFirst(connection)
+                    return
+                }
+            }
+        }
+
+        fun run(isRunning: () -> Boolean) {
+            try {
+                while (isRunning()) {
+                    selector.select(selectTimeoutMillis)
+                    while (true) {
+                        val task = tasks.poll() ?: break
+                        task()
+                    }
+
+                    val keys = selector.selectedKeys().iterator()
+                    while (keys.hasNext()) {
+                        val key = keys.next()
+                        keys.remove()
+                        val connection = key.attachment() as NioConnection
+                        try {
+                            if (key.isValid && key.isReadable) {
+                                connection.onReadable()
+                            }
+                            if (key.isValid && key.isWritable) {
+                                connection.onWritable()
+                            }
+                        } catch (iox: IOException) {
+                            // The other end went away
+                            connection.close()
+                        }
+                    }
+                }
+            } finally {
+                selector.keys().forEach { key ->
+                    (key.attachment() as? NioConnection)?.close()
+                }
+                selector.close()
+            }
+        }
+    }
+
+    /**
+     * A single client connection. Reads and writes happen in the owning loop's thread; replies are queued from
+     * handler threads.
+     */
+    private inner class NioConnection(private val channel: SocketChannel, private val loop: IoLoop) {
+        lateinit var key: SelectionKey
+
+        private val readBuffer = ByteBuffer.allocate(8192)
+        private val line = LineBuffer()
+        private val outgoing = ConcurrentLinkedQueue<ByteBuffer>()
+        private var state = NEW
+        private var format = WireFormat.JSON
+        @Volatile private var closeAfterFlush = false
+        private var stalledOn: Runnable? = null // <- A message no handler had room for, reading waits on it
+        private val interHost = channel.socket().isInterHost()
+
+        // Binary frames in progress. The length is -1 while its varint is still coming in
+        private var frame = ByteArray(0)
+        private var frameLength = -1
+        private var framePosition = 0
+        private var lengthValue = 0
+        private var lengthShift = 0
+
+
+        fun onReadable() {
+            readBuffer.clear()
+            if (channel.read(readBuffer) == -1) {
+                close()
+                return
+            }
+            readBuffer.flip()
+            consume()
+        }
+
+        /**
+         * Goes through what's left in the read buffer, unless we're stalled; the rest waits until we aren't.
+         */
+        private fun consume() {
+            while (stalledOn == null && readBuffer.hasRemaining()) {
+                if (format == WireFormat.BINARY) {
+                    readFrame()
+                    continue
+                }
+                val byte = readBuffer.get()
+                if (byte == '\n'.toByte()) {
+                    onLine()
+                    line.reset()
+                } else {
+                    line.write(byte.toInt())
+                }
+            }
+        }
+
+        /**
+         * Consumes as much of a binary frame as the read buffer has to offer.
+         */
+        private fun readFrame() {
+            if (frameLength == -1) {
+                val byte = readBuffer.get().toInt()
+                lengthValue = lengthValue or ((byte and 0x7F) shl lengthShift)
+                lengthShift += 7
+                if (byte and 0x80 != 0) {
+                    if (lengthShift >= 32) {
+                        throw IOException("Malformed frame length")
+                    }
+                    return
+                }
+                checkFrameLength(lengthValue)
+                frameLength = lengthValue
+                lengthValue = 0
+                lengthShift = 0
+                framePosition = 0
+                if (frame.size < frameLength) {
+                    frame = ByteArray(frameLength)
+                }
+            } else {
+                val count = minOf(readBuffer.remaining(), frameLength - framePosition)
+                readBuffer.get(frame, framePosition, count)
+                framePosition += count
+            }
+
+            if (frameLength != -1 && framePosition == frameLength) {
+                val length = frameLength
+                frameLength = -1
+                if (length == 0) {
+                    enqueueResponse(null) // <- A client never sends nothing, but keep the round trip going anyways
+                    return
+                }
+                val message = try { // <- Invalid messages, most likely a programmer error
+                    BinaryCodec.decode(frame, 0, length)
+                } catch (iox: IOException) {
+                    Logger.d("Received invalid message:")
+                    sendLog("Invalid binary message: $iox")
+                    enqueueResponse(null)
+                    return
+                }
+                dispatch(message)
+            }
+        }
+
+        fun onWritable() {
+            while (true) {
+                val buffer = outgoing.peek() ?: break
+                channel.write(buffer)
+                if (buffer.hasRemaining()) {
+                    return // <- Socket buffer is full, we'll be called again
+                }
+                outgoing.poll()
+            }
+            if (closeAfterFlush) {
+                close()
+            } else {
+                updateInterest(false)
+            }
+        }
+
+        /**
+         * Tries handing the message we're stalled on to the handlers again, and picks up reading where it left off
+         * if they take it. False if they're still full.
+         */
+        fun resume(): Boolean {
+            if (!key.isValid) {
+                return true // <- Went away in the meantime, nothing to resume
+            }
+            try {
+                handlers.execute(stalledOn ?: return true)
+            } catch (rx: RejectedExecutionException) {
+                return false
+            }
+            stalledOn = null
+            stalledCount.decrementAndGet()
+            try {
+                consume()
+                updateInterest(outgoing.isNotEmpty())
+            } catch (iox: IOException) {
+                // Same as in the loop, garbage in the rest of the buffer
+                close()
+            }
+            return true
+        }
+
+        private fun updateInterest(write: Boolean) {
+            val read = if (stalledOn == null) SelectionKey.OP_READ else 0
+            key.interestOps(read or (if (write) SelectionKey.OP_WRITE else 0))
+        }
+
+        private fun onLine() {
+            when (state) {
+                NEW -> {
+                    val text = line.toString(UTF_8.name()).trimEnd('\r')
+                    if (text.startsWith(HANDSHAKE_REQUEST)) {
+                        state = PERSISTENT
+                        format = WireFormat.of(text.handshakeFormat())
+                        enqueue(WireConnection.acceptLine(format))
+                        return
+                    }
+                }
+                LEGACY -> return // <- one line per incoming connection
+            }
+
+            val message = try { // <- Invalid messages, most likely a programmer error
+                // Parsed straight off of the bytes, no String in between
+                Message.fromJson(ModelTypeAdapterFactory.newJsonReader(line.reader()))
+            } catch (x: Exception) {
+                null
+            }
+            if (message == null) {
+                if (state == PERSISTENT) {
+                    enqueueResponse(null) // <- The other end is still waiting for an answer
+                }
+                if (line.size() > 0 && !line.isNull()) {
+                    Logger.d("Received invalid message:")
+                    sendLog("Invalid message: ${line.toString(UTF_8.name())}")
+                }
+                return
+            }
+            if (state == NEW) {
+                state = LEGACY
+            }
+            dispatch(message)
+        }
+
+        private fun dispatch(message: Message) {
+            Logger.d(message.toJson())
+            Metrics.increment("nio.dispatched")
+            val persistent = state == PERSISTENT
+            val task = Runnable {
+                val socket = ReplySocket { response ->
+                    if (persistent) {
+                        enqueueResponse(response)
+                    } else {
+                        // Legacy connections get their response, if any, and are closed afterwards
+                        closeAfterFlush = true
+                        enqueue(if (response == null) ByteArray(0) else WireFormat.JSON.frame(response))
+                    }
+                }
+                try {
+                    listener.onMessageReceived(message, socket)
+                } finally {
+                    socket.close() // <- No-op if the listener already replied
+                    if (stalledCount.get() > 0) {
+                        loops.forEach { loop -> loop.post { loop.resumeStalled() } }
+                    }
+                }
+            }
+
+            if (listener.mayBlock(message)) {
+                blockingHandlers.execute(task)
+                return
+            }
+            try {
+                handlers.execute(task)
+            } catch (rx: RejectedExecutionException) {
+                if (handlers.isShutdown) {
+                    return
+                }
+                // Full. Hold on to it and stop reading from this connection until there's room
+                Metrics.increment("nio.backpressure")
+                stalledOn = task
+                stalledCount.incrementAndGet()
+                loop.stall(this)
+                updateInterest(outgoing.isNotEmpty())
+            }
+        }
+
+        private fun enqueueResponse(response: Message?) {
+            val frame = format.frame(response)
+            Metrics.increment("wire.${format.id}.bytesOut", frame.size.toLong())
+            if (interHost) {
+                Metrics.increment("wire.interHostBytesOut", frame.size.toLong())
+            }
+            enqueue(frame)
+        }
+
+        private fun enqueue(bytes: ByteArray) {
+            outgoing.add(ByteBuffer.wrap(bytes))
+            loop.post {
+                if (key.isValid) {
+                    updateInterest(true)
+                }
+            }
+        }
+
+        fun close() {
+            if (stalledOn != null) {
+                stalledOn = null
+                stalledCount.decrementAndGet()
+            }
+            key.cancel()
+            try {
+                channel.close()
+            } catch (iox: IOException) {
+                // Don't care
+            }
+        }
+    }
+
+    /**
+     * Accumulates a line of bytes and lets it be read back without copying.
+     */
+    private class LineBuffer: ByteArrayOutputStream() {
+        fun reader() = InputStreamReader(ByteArrayInputStream(buf, 0, count), UTF_8)
+
+        fun isNull() = count >= 4 && String(buf, 0, count, UTF_8).trim() == "null"
+    }
+
+    private companion object {
+        // Connection states
+        const val NEW = 0
+        const val PERSISTENT = 1
+        const val LEGACY = 2
+
+        fun namedThreads(name: String): ThreadFactory {
+            val count = AtomicInteger()
+            return ThreadFactory { runnable ->
+                Thread(runnable, "$name-${count.getAndIncrement()}")
+            }
+        }
+    }
+}
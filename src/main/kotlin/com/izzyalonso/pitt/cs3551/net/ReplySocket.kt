@@ -0,0 +1,59 @@
+package com.izzyalonso.pitt.cs3551.net
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.izzyalonso.pitt.cs3551.model.Message
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.Socket
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.text.Charsets.UTF_8
+
+
+/**
+ * What listeners get instead of the raw socket when a message comes through a persistent connection. Listeners
+ * use it exactly like before: [send] a response, close it, or both. Rather than touching the wire, the response
+ * is handed over to [onReply], which takes care of writing it to the shared connection. Exactly one reply goes
+ * out per message; closing the socket without sending anything replies with nothing.
+ */
+@AnyThread
+class ReplySocket(private val onReply: (Message?) -> Unit): Socket() {
+    private val replied = AtomicBoolean(false)
+
+
+    /**
+     * Sends the response, or nothing if [message] is null. Only the first call has any effect.
+     */
+    fun reply(message: Message?) {
+        if (replied.compareAndSet(false, true)) {
+            onReply(message)
+        }
+    }
+
+    fun hasReplied() = replied.get()
+
+    override fun close() = reply(null)
+
+    override fun isClosed() = replied.get()
+
+    override fun isConnected() = !replied.get()
+
+    // In case someone writes to the stream rather than using send(), lines are parsed back into messages
+    override fun getOutputStream(): OutputStream = object: OutputStream() {
+        private val line = ByteArrayOutputStream()
+
+        override fun write(b: Int) {
+            if (b == '\n'.toInt()) {
+                reply(Message.fromJson(line.toString(UTF_8.name())))
+                line.reset()
+            } else {
+                line.write(b)
+            }
+        }
+    }
+
+    override fun getInputStream(): InputStream {
+        throw IOException("Persistent connections are read by the server, not by listeners.")
+    }
+}
@@ -1,23 +1,44 @@
 package com.izzyalonso.pitt.cs3551.net
 
 import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.util.Config
 import com.izzyalonso.pitt.cs3551.util.Logger
 import java.io.*
 import java.net.ServerSocket
 import java.net.Socket
+import java.net.SocketException
 import java.net.SocketTimeoutException
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.text.Charsets.UTF_8
 
 /**
  * This interface listens to a port and delivers each received message along with its socket. Listening can be done
  * both, synchronously and asynchronously. Each connection is offloaded to a separate thread and the client is in
  * charge of closing sockets when they're done using them.
+ *
+ * Connections come in two flavors. Legacy ones carry a single message. Persistent ones (see [ConnectionPool]) start
+ * with a handshake and carry as many messages as the other end wants; listeners get a [ReplySocket] for those.
+ *
+ * Passing a [NioConfig] swaps the thread per connection model for a few selector threads and a bounded pool of
+ * handler threads, see [NioServer]. Listeners are called the same way in both modes.
  */
-class ServerSocketInterface @JvmOverloads constructor(private val listener: Listener, private val timeoutMillis: Int = 1000) {
+class ServerSocketInterface @JvmOverloads constructor(
+    private val listener: Listener,
+    private val timeoutMillis: Int = 1000,
+    private val nio: NioConfig? = null
+) {
 
-    private var running: Boolean = false
+    @Volatile private var running: Boolean = false
     var connected: Boolean = false
         private set
 
+    @Volatile private var serverSocket: ServerSocket? = null
+    @Volatile private var nioServer: NioServer? = null
+    // Accepted connections that are still open, they go down along with the listener
+    private val openSockets: MutableSet<Socket> = Collections.newSetFromMap(ConcurrentHashMap())
+
     init {
         running = false
         connected = false
@@ -35,40 +56,15 @@ class ServerSocketInterface @JvmOverloads constructor(private val listener: List
     fun startListening(port: Int? = null) {
         running = true
         try { // <- Exclusively for checking if the port is already in use, this is a fatal
-            ServerSocket(port ?: 0).use { serverSocket ->
-                // Initialize the socket
-                connected = true
-                listener.onConnected(serverSocket.localPort)
-                serverSocket.soTimeout = timeoutMillis
-
-                // Main loop, the socket will accept incoming connections until running becomes false
-                while (running) {
-                    try { // <- For the timer loop exception
-                        val clientSocket = serverSocket.accept()
-
-                        Thread { // Incoming connection, offloading to a new thread
-                            try { // <- to separate IOExceptions I don't really care about from invalid messages
-                                for (input in clientSocket.bufferedReader().lines()) {
-                                    try { // <- Invalid messages, most likely a programmer error
-                                        // Parse and deliver the message, along with the socket in a separate thread
-                                        val message = Message.fromJson(input)
-                                        Logger.d(message.toJson())
-                                        listener.onMessageReceived(message, clientSocket)
-                                        break // <- one line per incoming connection
-                                    } catch (x: Exception) {
-                                        Logger.d("Received invalid message:")
-                                        sendLog("Invalid message: $input")
-                                    }
-                                }
-                            } catch (iox: IOException) {
-                                // Don't care if anything breaks here, we still got the outer loop
-                                // iox.printStackTrace();
-                            }
-                        }.start() // <- Thread
-                    } catch (stx: SocketTimeoutException) {
-                        // System.out.println("Socket timeout. Checking if still running."); // <- Very spammy
-                    }
-                }
+            if (nio != null) {
+                val server = NioServer(listener, nio, timeoutMillis.toLong())
+                nioServer = server
+                server.run(port, { localPort ->
+                    connected = true
+                    listener.onConnected(localPort)
+                }, { running })
+            } else {
+                listenBlocking(port)
             }
         } catch (iox: IOException) {
             listener.onError(PortAlreadyUsedException())
@@ -82,10 +78,146 @@ class ServerSocketInterface @JvmOverloads constructor(private val listener: List
     }
 
     /**
-     * Releases the socket.
+     * The classic flavor, a thread per connection.
+     */
+    private fun listenBlocking(port: Int?) {
+        ServerSocket(port ?: 0).use { serverSocket ->
+            this.serverSocket = serverSocket
+            // Initialize the socket
+            connected = true
+            listener.onConnected(serverSocket.localPort)
+            serverSocket.soTimeout = timeoutMillis
+
+            // Main loop, the socket will accept incoming connections until running becomes false
+            while (running) {
+                try { // <- For the timer loop exception
+                    val clientSocket = serverSocket.accept()
+                    openSockets.add(clientSocket)
+                    if (!running) { // <- Stopped while we were accepting it, stopListening could've missed it
+                        clientSocket.closeQuietly()
+                        break
+                    }
+
+                    Thread { // Incoming connection, offloading to a new thread
+                        serve(clientSocket)
+                    }.start() // <- Thread
+                } catch (stx: SocketTimeoutException) {
+                    // System.out.println("Socket timeout. Checking if still running."); // <- Very spammy
+                } catch (sx: SocketException) {
+                    if (running) {
+                        throw sx
+                    }
+                    // stopListening closed it
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads whatever comes through a freshly accepted connection.
+     */
+    private fun serve(clientSocket: Socket) {
+        var persistent = false
+        try { // <- to separate IOExceptions I don't really care about from invalid messages
+            val input = BufferedInputStream(clientSocket.getInputStream())
+            val firstLine = input.readRawLine() ?: return clientSocket.close()
+            if (firstLine.startsWith(HANDSHAKE_REQUEST)) {
+                persistent = true
+                servePersistent(WireConnection.accept(clientSocket, input, firstLine))
+                return
+            }
+
+            // Legacy connection, the first line is the message
+            for (line in sequenceOf(firstLine) + BufferedReader(InputStreamReader(input, UTF_8)).lineSequence()) {
+                try { // <- Invalid messages, most likely a programmer error
+                    // Parse and deliver the message, along with the socket in a separate thread
+                    val message = Message.fromJson(line)
+                    Logger.d(message.toJson())
+                    listener.onMessageReceived(message, clientSocket)
+                    break // <- one line per incoming connection
+                } catch (x: Exception) {
+                    Logger.d("Received invalid message:")
+                    sendLog("Invalid message: $line")
+                }
+            }
+        } catch (iox: IOException) {
+            // Don't care if anything breaks here, we still got the outer loop
+            // iox.printStackTrace();
+        } finally {
+            if (!persistent) {
+                openSockets.remove(clientSocket) // <- Whoever sent it closes it, as always
+            }
+        }
+    }
+
+    /**
+     * Delivers messages coming through a persistent [connection] one after the other until it closes. A listener
+     * replying before it's done handling (eg. closing the socket to do something lengthy) frees up the connection:
+     * reading carries on in a new thread while the listener finishes its business in this one.
+     */
+    private fun servePersistent(connection: WireConnection) {
+        try {
+            while (running) {
+                val message: Message?
+                try { // <- Invalid messages, most likely a programmer error
+                    message = connection.read()
+                } catch (iox: IOException) {
+                    throw iox
+                } catch (x: Exception) {
+                    Logger.d("Received invalid message:")
+                    sendLog("Invalid message on a persistent connection: $x")
+                    connection.write(null) // <- The other end is still waiting for an answer
+                    continue
+                }
+                if (message == null) { // <- Nothing to deliver, but keep the round trip going
+                    connection.write(null)
+                    continue
+                }
+                Logger.d(message.toJson())
+
+                val state = AtomicInteger(HANDLING)
+                val socket = ReplySocket { response ->
+                    connection.write(response)
+                    if (state.compareAndSet(HANDLING, HANDED_OFF)) {
+                        Thread {
+                            servePersistent(connection)
+                        }.start()
+                    }
+                }
+                try {
+                    listener.onMessageReceived(message, socket)
+                } finally {
+                    val handedOff = !state.compareAndSet(HANDLING, DONE)
+                    socket.close() // <- No-op if the listener already replied
+                    if (handedOff) {
+                        return
+                    }
+                }
+            }
+        } catch (iox: IOException) {
+            // The other end went away
+        }
+        connection.close()
+        openSockets.remove(connection.socket)
+    }
+
+    /**
+     * Stops accepting connections and closes the ones already open, persistent or not, right away. Whatever's
+     * being handled at the time can't be answered anymore; to the other end it's as if this machine went down.
      */
     fun stopListening() {
         running = false
+        serverSocket?.closeQuietly()
+        nioServer?.stop()
+        openSockets.forEach { it.closeQuietly() }
+    }
+
+    private fun Closeable.closeQuietly() {
+        try {
+            close()
+        } catch (iox: IOException) {
+            // Don't care
+        }
     }
 
 
@@ -105,6 +237,15 @@ class ServerSocketInterface @JvmOverloads constructor(private val listener: List
          */
         fun onMessageReceived(message: Message, socket: Socket)
 
+        /**
+         * Whether handling [message] can sit waiting on locks or other nodes. In NIO mode those get a thread of their
+         * own rather than one from the bounded pool, so they can't starve everything else. The blocking flavor
+         * doesn't care, every connection has its own thread already.
+         *
+         * @param message the message about to be handled.
+         */
+        fun mayBlock(message: Message): Boolean = false
+
         /**
          * Called when an error worth communicating happens.
          *
@@ -118,6 +259,30 @@ class ServerSocketInterface @JvmOverloads constructor(private val listener: List
         fun onDisconnected()
     }
 
+    /**
+     * Thread counts for the NIO mode. [handlerQueueSize] is how many messages can wait for a handler before
+     * connections stop being read from.
+     */
+    data class NioConfig(val ioThreads: Int = 2, val handlerThreads: Int = 16, val handlerQueueSize: Int = 1024) {
+        companion object {
+            /**
+             * The NIO settings in [Config], or null if NIO is disabled.
+             */
+            fun fromConfig() = if (Config.nioListener) {
+                NioConfig(Config.nioIoThreads, Config.nioHandlerThreads, Config.nioHandlerQueueSize)
+            } else {
+                null
+            }
+        }
+    }
+
+    private companion object {
+        // States of a message being handled on a persistent connection
+        const val HANDLING = 0
+        const val HANDED_OFF = 1
+        const val DONE = 2
+    }
+
     // Just an adapter to the listener, don't wanna clutter code in other places
     open class ListenerAdapter: Listener {
         override fun onConnected(port: Int) {}
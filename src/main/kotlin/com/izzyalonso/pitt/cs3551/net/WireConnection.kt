@@ -0,0 +1,332 @@
+package com.izzyalonso.pitt.cs3551.net
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import com.google.gson.stream.JsonToken
+import com.izzyalonso.pitt.cs3551.model.BinaryCodec
+import com.izzyalonso.pitt.cs3551.model.Message
+import com.izzyalonso.pitt.cs3551.model.ModelTypeAdapterFactory
+import com.izzyalonso.pitt.cs3551.util.Config
+import com.izzyalonso.pitt.cs3551.util.Metrics
+import java.io.*
+import java.net.Socket
+import java.nio.ByteBuffer
+import kotlin.text.Charsets.UTF_8
+
+
+// First line a client sends on a persistent connection, followed by a space and the requested format
+internal const val HANDSHAKE_REQUEST = "LB-CONNECT"
+// What the server answers with, followed by a space and the format it agreed to
+internal const val HANDSHAKE_ACCEPT = "LB-ACCEPT"
+
+/**
+ * How messages are laid out on a persistent connection. The client asks for one during the handshake and the
+ * server answers with the one it picked; a server that doesn't know the requested format answers json, which
+ * every node speaks. That way nodes with different settings (or versions) can still talk to each other.
+ */
+enum class WireFormat(val id: String) {
+    /**
+     * A line of JSON per message, a JSON null for no message.
+     */
+    JSON("json") {
+        override fun frame(message: Message?): ByteArray {
+            val frame = ByteArrayOutputStream()
+            OutputStreamWriter(frame, UTF_8).apply {
+                writeJsonLine(message)
+                flush()
+            }
+            return frame.toByteArray()
+        }
+    },
+
+    /**
+     * A varint length followed by the [BinaryCodec] representation of the message, a length of 0 for no message.
+     */
+    BINARY("binary") {
+        override fun frame(message: Message?): ByteArray {
+            val payload = message?.let { BinaryCodec.encode(it) } ?: ByteArray(0)
+            val frame = ByteArrayOutputStream(payload.size + 5)
+            frame.writeVarint(payload.size)
+            frame.write(payload)
+            return frame.toByteArray()
+        }
+    };
+
+    /**
+     * Lays out a message, or the absence of one, ready to be written to the wire.
+     */
+    abstract fun frame(message: Message?): ByteArray
+
+    companion object {
+        /**
+         * The format this process asks for when it opens connections.
+         */
+        val preferred = of(Config.wireFormat)
+
+        /**
+         * Looks up a format by [id], falling back to JSON for anything unknown.
+         */
+        fun of(id: String?) = values().firstOrNull { it.id == id } ?: JSON
+    }
+}
+
+/**
+ * Reads a '\n' terminated line straight off of a stream, one byte at a time. Used for the handshake, where
+ * a buffered reader would swallow bytes belonging to the first message. Returns null at the end of the stream.
+ */
+internal fun InputStream.readRawLine(): String? {
+    val bytes = ByteArrayOutputStream()
+    while (true) {
+        val byte = read()
+        if (byte == -1) {
+            return if (bytes.size() == 0) null else bytes.toString(UTF_8.name())
+        }
+        if (byte == '\n'.toInt()) {
+            return bytes.toString(UTF_8.name()).trimEnd('\r')
+        }
+        bytes.write(byte)
+    }
+}
+
+/**
+ * Writes a [message] followed by a line break, a JSON null if there's no message. Streams the JSON rather than
+ * building the whole string first; big messages (eg. job info lists) would otherwise exist twice in memory.
+ */
+internal fun Writer.writeJsonLine(message: Message?) {
+    if (message == null) {
+        write("null")
+    } else {
+        message.writeJson(this)
+    }
+    write('\n'.toInt())
+}
+
+/**
+ * The format in a handshake line, if any.
+ */
+internal fun String.handshakeFormat() = split(' ').getOrNull(1)
+
+/**
+ * Whether the other end of this socket is on another host. Nodes on the same host talk over loopback or their own
+ * address, either way both ends share it.
+ */
+internal fun Socket.isInterHost() = inetAddress != null && inetAddress != localAddress
+
+internal fun OutputStream.writeVarint(value: Int) {
+    var remaining = value
+    while (remaining and 0x7F.inv() != 0) {
+        write((remaining and 0x7F) or 0x80)
+        remaining = remaining ushr 7
+    }
+    write(remaining)
+}
+
+/**
+ * Reads an unsigned varint. Returns -1 if the stream ends before the first byte.
+ */
+internal fun InputStream.readVarint(): Int {
+    var value = 0
+    var shift = 0
+    while (shift < 32) {
+        val byte = read()
+        if (byte == -1) {
+            if (shift == 0) {
+                return -1
+            }
+            throw EOFException()
+        }
+        value = value or ((byte and 0x7F) shl shift)
+        if (byte and 0x80 == 0) {
+            return value
+        }
+        shift += 7
+    }
+    throw IOException("Malformed varint")
+}
+
+/**
+ * Makes sure a binary frame [length] read off the wire is something worth allocating a buffer for.
+ *
+ * @throws IOException if it's negative (the varint overflowed) or over [Config.maxFrameBytes].
+ */
+internal fun checkFrameLength(length: Int) {
+    if (length < 0 || length > Config.maxFrameBytes) {
+        throw IOException("Invalid frame length: $length")
+    }
+}
+
+/**
+ * A persistent, framed connection. Both ends of a pooled connection use this: clients write requests and read
+ * responses, servers do the opposite. Every request gets exactly one response on the wire, an absent response
+ * being framed as such so the client knows it can reuse the connection.
+ *
+ * Messages are buffered before they make it to [output], which shouldn't buffer them again; that way [bytesSent]
+ * is what the socket actually took.
+ */
+@AnyThread
+class WireConnection internal constructor(
+    internal val socket: Socket,
+    private val input: InputStream,
+    private val output: OutputStream,
+    val format: WireFormat
+) {
+    private val countingOutput = CountingOutputStream(output)
+    private val interHost = socket.isInterHost()
+    private val writer by lazy { BufferedWriter(OutputStreamWriter(countingOutput, UTF_8)) }
+    private val jsonReader by lazy { ModelTypeAdapterFactory.newJsonReader(BufferedReader(InputStreamReader(input, UTF_8))) }
+
+    // Set by the pool when the connection is handed out a second time
+    internal var reused = false
+
+    // Bytes that made it out since the handshake
+    internal val bytesSent: Long
+        @Synchronized get() = countingOutput.count
+
+    /**
+     * Writes a [message], or the absence of one, and flushes.
+     */
+    fun write(message: Message?) {
+        val written = synchronized(this) {
+            val before = countingOutput.count
+            when (format) {
+                WireFormat.JSON -> {
+                    writer.writeJsonLine(message)
+                    writer.flush()
+                }
+                WireFormat.BINARY -> {
+                    countingOutput.write(format.frame(message))
+                    countingOutput.flush()
+                }
+            }
+            countingOutput.count - before
+        }
+        Metrics.increment("wire.${format.id}.bytesOut", written)
+        if (interHost) {
+            Metrics.increment("wire.interHostBytesOut", written)
+        }
+    }
+
+    /**
+     * Reads the next message. Returns null if the other end explicitly sent nothing.
+     *
+     * @throws EOFException if the connection was closed.
+     * @throws IOException if the connection is broken or carries something that isn't a message. A JSON stream
+     * can't be resynchronized after an invalid message, so the connection shouldn't be used afterwards.
+     */
+    fun read(): Message? = when (format) {
+        WireFormat.JSON -> try {
+            when (jsonReader.peek()) {
+                JsonToken.END_DOCUMENT -> throw EOFException()
+                JsonToken.NULL -> {
+                    jsonReader.nextNull()
+                    null
+                }
+                else -> Message.fromJson(jsonReader)
+            }
+        } catch (x: RuntimeException) {
+            throw IOException("Invalid message", x)
+        }
+        WireFormat.BINARY -> {
+            val length = input.readVarint()
+            if (length == -1) {
+                throw EOFException()
+            }
+            checkFrameLength(length)
+            val payload = ByteArray(length)
+            DataInputStream(input).readFully(payload)
+            if (length == 0) null else BinaryCodec.decode(payload, 0, length)
+        }
+    }
+
+    /**
+     * Whether the other end closed or reset the connection since it was last used, or sent something nobody asked
+     * for. Doesn't wait on anything. Only connections opened over a channel can tell; others look fine until used.
+     */
+    internal fun isStale(): Boolean {
+        val channel = socket.channel ?: return false
+        return try {
+            if (input.available() > 0) {
+                return true
+            }
+            synchronized(channel.blockingLock()) {
+                channel.configureBlocking(false)
+                try {
+                    channel.read(ByteBuffer.allocate(1)) != 0 // <- -1 if closed, 1 if there's something there
+                } finally {
+                    channel.configureBlocking(true)
+                }
+            }
+        } catch (iox: IOException) {
+            true
+        }
+    }
+
+    /**
+     * Client side of a round trip.
+     */
+    fun request(message: Message): Message? {
+        write(message)
+        return read()
+    }
+
+    fun close() {
+        try {
+            socket.close()
+        } catch (iox: IOException) {
+            // Don't care
+        }
+    }
+
+    companion object {
+        /**
+         * Client side handshake. Requests the connection to be made persistent in the given [format] and waits
+         * for the server's go, which includes the format the server actually agreed to. Reads on the connection,
+         * the handshake's included, give up after [Config.readTimeoutMillis].
+         */
+        @Throws(IOException::class)
+        fun open(socket: Socket, format: WireFormat = WireFormat.preferred): WireConnection {
+            socket.soTimeout = Config.readTimeoutMillis
+            val input = BufferedInputStream(socket.getInputStream())
+            val output = socket.getOutputStream()
+            output.write("$HANDSHAKE_REQUEST ${format.id}\n".toByteArray(UTF_8))
+            val response = input.readRawLine() ?: throw EOFException()
+            if (!response.startsWith(HANDSHAKE_ACCEPT)) {
+                throw IOException("Unexpected handshake response: $response")
+            }
+            return WireConnection(socket, input, output, WireFormat.of(response.handshakeFormat()))
+        }
+
+        /**
+         * Server side handshake, to be called once the [handshake] line has been read off of [input].
+         */
+        @Throws(IOException::class)
+        internal fun accept(socket: Socket, input: InputStream, handshake: String): WireConnection {
+            val format = WireFormat.of(handshake.handshakeFormat())
+            val output = socket.getOutputStream()
+            output.write(acceptLine(format))
+            return WireConnection(socket, input, output, format)
+        }
+
+        /**
+         * What a server answers to a handshake, having agreed to [format].
+         */
+        internal fun acceptLine(format: WireFormat) = "$HANDSHAKE_ACCEPT ${format.id}\n".toByteArray(UTF_8)
+    }
+}
+
+/**
+ * Keeps track of how many bytes went through.
+ */
+private class CountingOutputStream(private val output: OutputStream): FilterOutputStream(output) {
+    var count = 0L
+        private set
+
+    override fun write(b: Int) {
+        output.write(b)
+        count++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        output.write(b, off, len)
+        count += len
+    }
+}
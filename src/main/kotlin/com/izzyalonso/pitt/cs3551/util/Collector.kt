@@ -3,6 +3,7 @@ package com.izzyalonso.pitt.cs3551.util
 import com.izzyalonso.pitt.cs3551.annotation.AnyThread
 import com.izzyalonso.pitt.cs3551.annotation.GuardedBy
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 
 abstract class BaseCollector<T>(count: Int) {
@@ -16,6 +17,14 @@ abstract class BaseCollector<T>(count: Int) {
         return get()
     }
 
+    /**
+     * Same as above, but gives up after [timeoutMillis] and returns whatever there is by then.
+     */
+    fun awaitAndGet(timeoutMillis: Long): T {
+        latch.await(timeoutMillis, TimeUnit.MILLISECONDS)
+        return get()
+    }
+
     protected abstract fun get(): T
 }
 
@@ -37,6 +46,18 @@ class Collector<T>(count: Int) {
     }
     fun awaitAndGet(): List<T> {
         latch.await()
+        return get()
+    }
+
+    /**
+     * Same as above, but gives up after [timeoutMillis] and returns the items that made it by then.
+     */
+    fun awaitAndGet(timeoutMillis: Long): List<T> {
+        latch.await(timeoutMillis, TimeUnit.MILLISECONDS)
+        return get()
+    }
+
+    private fun get(): List<T> {
         val itemsCopy: List<T>
         synchronized(this) {
             itemsCopy = items.toList()
@@ -61,12 +82,29 @@ class MappingCollector<K, V>(count: Int) {
             return
         }
         synchronized(this) {
+            // Somebody answering twice (eg. a retry) doesn't make up for somebody who didn't
+            if (items.containsKey(key)) {
+                return
+            }
             items[key] = value
         }
         latch.countDown()
     }
     fun awaitAndGet(): Map<K, V> {
         latch.await()
+        return get()
+    }
+
+    /**
+     * Same as above, but gives up after [timeoutMillis] and returns the entries that made it by then. Callers
+     * can tell who's missing by the keys.
+     */
+    fun awaitAndGet(timeoutMillis: Long): Map<K, V> {
+        latch.await(timeoutMillis, TimeUnit.MILLISECONDS)
+        return get()
+    }
+
+    private fun get(): Map<K, V> {
         val itemsCopy: Map<K, V>
         synchronized(this) {
             itemsCopy = items.toMap()
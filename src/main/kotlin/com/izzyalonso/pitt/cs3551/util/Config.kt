@@ -0,0 +1,96 @@
+package com.izzyalonso.pitt.cs3551.util
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+
+
+/**
+ * Tunables. Everything is read from environment variables, as nodes are spawned by their controller and inherit
+ * its environment, so configuring a controller configures all of its nodes. For local runs, a JVM system property
+ * by the same name takes precedence.
+ */
+@AnyThread
+object Config {
+    // Format requested when opening connections, json or binary. Peers that don't speak it fall back to json
+    val wireFormat = string("LB_WIRE_FORMAT", "json")
+    // Largest binary frame a connection accepts. Anything longer is taken for garbage and the connection dropped
+    val maxFrameBytes = int("LB_MAX_FRAME_BYTES", 16 shl 20)
+    // How long a pooled connection waits on a response before giving up on it. Some take a while, eg. spinning up nodes
+    val readTimeoutMillis = int("LB_READ_TIMEOUT_MILLIS", 60_000)
+    // Whether listeners should use NIO selectors and a bounded handler pool rather than a thread per connection
+    val nioListener = boolean("LB_NIO_LISTENER", false)
+    // Threads running selectors when in NIO mode
+    val nioIoThreads = int("LB_NIO_IO_THREADS", 2)
+    // Threads running the quick listener callbacks when in NIO mode, the ones that block get their own
+    val nioHandlerThreads = int("LB_NIO_HANDLER_THREADS", 16)
+    // Messages waiting for a handler thread before connections stop being read from
+    val nioHandlerQueueSize = int("LB_NIO_HANDLER_QUEUE", 1024)
+    // Lowest level shipped to the log node: debug, info, warn or error
+    val logLevel = string("LB_LOG_LEVEL", "info")
+    // How often buffered log lines are shipped to the log node
+    val logFlushMillis = long("LB_LOG_FLUSH_MILLIS", 200)
+    // Log lines buffered between flushes before new ones start getting dropped
+    val logBufferSize = int("LB_LOG_BUFFER_SIZE", 4096)
+    // Threads executing jobs in every node. Nodes spawned on the same machine compete for the same cores
+    val nodeWorkers = int("LB_NODE_WORKERS", Runtime.getRuntime().availableProcessors())
+    // Algorithm deciding balancing transfers: greedy (the original sweep) or partition (LPT, fewer transfers)
+    val balancingMode = string("LB_BALANCING_MODE", "greedy")
+    // Whether balancing collects per node weight summaries rather than every queued job. Plans move weight around
+    // and donors pick the jobs, the balancing mode above doesn't apply
+    val summaryCollection = boolean("LB_SUMMARY_COLLECTION", false)
+    // A parent balances its subtree once the time a round would save, going by the spread in queued weight, is this
+    // many times what rounds have been taking, and until it's under the second ratio. See BalancingTrigger
+    val triggerGainRatio = double("LB_TRIGGER_GAIN_RATIO", 2.0)
+    val triggerReleaseRatio = double("LB_TRIGGER_RELEASE_RATIO", 1.0)
+    // What a round is assumed to take until a node has timed one of its own
+    val roundCostMillis = long("LB_ROUND_COST_MILLIS", 500)
+    // Whether nodes balance by diffusion instead of in rounds: every so often, each node pushes part of its backlog to
+    // whichever of its parent and children have less of it, as of their heartbeats. Nothing stops for it
+    val diffusion = boolean("LB_DIFFUSION", false)
+    // How often a node diffuses, and the fraction of its fair share of the difference it hands each lighter neighbor
+    val diffusionPeriodMillis = long("LB_DIFFUSION_PERIOD_MILLIS", 250)
+    val diffusionRate = double("LB_DIFFUSION_RATE", 0.5)
+    // Donors a node fetches jobs from, or recipients it pushes jobs to, at once when balancing
+    val transferFanOut = int("LB_TRANSFER_FAN_OUT", 8)
+    // How long a balancing round waits on each of those. Jobs that take longer are still queued when they make it
+    val transferTimeoutMillis = long("LB_TRANSFER_TIMEOUT_MILLIS", 2000)
+    // How long collecting the jobs of a subtree waits on each level under it. Children that don't make it are left
+    // out of the round
+    val collectTimeoutMillis = long("LB_COLLECT_TIMEOUT_MILLIS", 2000)
+    // How long a node stays in balancing mode waiting for an operation to get back to it before giving up on it
+    val balancingTimeoutMillis = long("LB_BALANCING_TIMEOUT_MILLIS", 60_000)
+    // How often a node considers reporting its subtree's load to its parent
+    val loadReportPeriodMillis = long("LB_LOAD_REPORT_PERIOD_MILLIS", 500)
+    // How much the load has to change since the last report to be reported again, see LoadInfo.differsFrom
+    val loadReportThreshold = double("LB_LOAD_REPORT_THRESHOLD", 0.02)
+    // Whether to also attach the load to messages already going to the parent, which counts as a report
+    val loadPiggyback = boolean("LB_LOAD_PIGGYBACK", false)
+    // Whether the hierarchy groups nodes on the same host under a shared parent before building levels across hosts
+    val topologyAwareHierarchy = boolean("LB_TOPOLOGY_AWARE_HIERARCHY", true)
+    // Address a controller's nodes are reached at and grouped by, the first non loopback interface's if empty
+    val hostAddress = string("LB_HOST_ADDRESS", "")
+    // What a level of the hierarchy adds to a balancing round, besides its messages. Adaptive fan-outs weigh it
+    // against the cost of a message, which is measured, or the one below if nothing was sent yet
+    val levelOverheadMillis = double("LB_LEVEL_OVERHEAD_MILLIS", 10.0)
+    val messageCostMillis = double("LB_MESSAGE_COST_MILLIS", 1.0)
+    // Whether nodes get their parent and the levels they own, rather than their whole subtree, when the hierarchy is
+    // passed down
+    val compactHierarchy = boolean("LB_COMPACT_HIERARCHY", true)
+    // How often parents and the nodes they own tell each other they're alive
+    val heartbeatMillis = long("LB_HEARTBEAT_MILLIS", 1000)
+    // How suspicious of a quiet node to get before declaring it dead, see FailureDetector. 8 is about one false alarm
+    // in a hundred million heartbeats, if they keep their usual pace
+    val phiThreshold = double("LB_PHI_THRESHOLD", 8.0)
+    // Whether nodes that run out of work go ask nodes nearby for some of theirs, rather than wait for a round
+    val workStealing = boolean("LB_WORK_STEALING", false)
+
+
+    fun string(name: String, default: String): String = System.getProperty(name) ?: System.getenv(name) ?: default
+
+    fun int(name: String, default: Int) = string(name, default.toString()).toInt()
+
+    fun long(name: String, default: Long) = string(name, default.toString()).toLong()
+
+    fun double(name: String, default: Double) = string(name, default.toString()).toDouble()
+
+    fun boolean(name: String, default: Boolean) = string(name, default.toString()).toBoolean()
+}
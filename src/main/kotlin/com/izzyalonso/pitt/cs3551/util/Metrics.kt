@@ -0,0 +1,95 @@
+package com.izzyalonso.pitt.cs3551.util
+
+import com.izzyalonso.pitt.cs3551.annotation.AnyThread
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+
+/**
+ * Process wide counters and timers. Nothing fancy, just enough to tell whether an optimization is doing its job.
+ * Names are free form, but I'm sticking to "component.thing" to keep reports readable.
+ */
+@AnyThread
+object Metrics {
+    private val counters = ConcurrentHashMap<String, AtomicLong>()
+    private val timers = ConcurrentHashMap<String, Timer>()
+
+
+    /**
+     * Adds [delta] to the counter called [name], creating it if it doesn't exist.
+     */
+    fun increment(name: String, delta: Long = 1) {
+        counters.getOrPut(name) { AtomicLong() }.addAndGet(delta)
+    }
+
+    /**
+     * Gets the current value of a counter, 0 if it was never incremented.
+     */
+    fun count(name: String) = counters[name]?.get() ?: 0L
+
+    /**
+     * Records a sample of [nanos] in the timer called [name].
+     */
+    fun record(name: String, nanos: Long) {
+        timers.getOrPut(name) { Timer() }.record(nanos)
+    }
+
+    /**
+     * Gets a timer, or null if nothing was ever recorded on it.
+     */
+    fun timer(name: String): Timer? = timers[name]
+
+    /**
+     * Times [block] and records the elapsed time in the timer called [name].
+     */
+    inline fun <T> time(name: String, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(name, System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * A one line, human readable report of every counter and timer.
+     */
+    fun report(): String {
+        val builder = StringBuilder()
+        counters.toSortedMap().forEach { (name, value) ->
+            builder.append(name).append('=').append(value.get()).append(' ')
+        }
+        timers.toSortedMap().forEach { (name, timer) ->
+            builder.append(name).append('=').append(timer).append(' ')
+        }
+        return builder.toString().trim()
+    }
+
+    /**
+     * Count, mean and max of a bunch of samples. Samples are in nanos, reports are in millis.
+     */
+    @AnyThread
+    class Timer {
+        private val count = AtomicLong()
+        private val totalNanos = AtomicLong()
+        private val maxNanos = AtomicLong()
+
+        fun record(nanos: Long) {
+            count.incrementAndGet()
+            totalNanos.addAndGet(nanos)
+            maxNanos.accumulateAndGet(nanos) { current, new -> if (new > current) new else current }
+        }
+
+        fun count() = count.get()
+
+        fun meanMillis(): Double {
+            val count = count.get()
+            return if (count == 0L) 0.0 else totalNanos.get().toDouble()/count/TimeUnit.MILLISECONDS.toNanos(1)
+        }
+
+        fun maxMillis() = maxNanos.get().toDouble()/TimeUnit.MILLISECONDS.toNanos(1)
+
+        override fun toString() = "[n=${count()} mean=${"%.2f".format(meanMillis())}ms max=${"%.2f".format(maxMillis())}ms]"
+    }
+}